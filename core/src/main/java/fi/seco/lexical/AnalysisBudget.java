@@ -0,0 +1,58 @@
+package fi.seco.lexical;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time and work allowance for a single analysis call. The services check the
+ * budget cooperatively before their optional expensive stages (fuzzy
+ * correction, guessing, baseform segmentation, tagging and parsing) and skip
+ * those stages once it has run out, so that results come back cheaper instead
+ * of late. Results affected by a skipped stage carry the {@value #DEGRADED}
+ * global tag, with the name of the skipped stage as its value.
+ *
+ * Work is counted in transducer lookups. A budget is not thread-safe and is
+ * meant to be used by one call at a time.
+ */
+public class AnalysisBudget {
+
+	public static final String DEGRADED = "DEGRADED";
+
+	public static final AnalysisBudget UNLIMITED = new AnalysisBudget(Long.MAX_VALUE, Long.MAX_VALUE);
+
+	private final boolean timed;
+	private final long deadline;
+	private final long maxWork;
+	private long work;
+	private boolean exhausted;
+
+	/**
+	 * @param timeoutMillis time allowed from now, Long.MAX_VALUE for no limit
+	 */
+	public AnalysisBudget(long timeoutMillis) {
+		this(timeoutMillis, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param timeoutMillis time allowed from now, Long.MAX_VALUE for no limit
+	 * @param maxWork number of transducer lookups allowed, Long.MAX_VALUE for no limit
+	 */
+	public AnalysisBudget(long timeoutMillis, long maxWork) {
+		this.timed = timeoutMillis != Long.MAX_VALUE;
+		this.deadline = timed ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+		this.maxWork = maxWork;
+	}
+
+	public void spend(long units) {
+		if (maxWork != Long.MAX_VALUE) work += units;
+	}
+
+	public boolean isExhausted() {
+		if (!exhausted && (work >= maxWork || timed && System.nanoTime() - deadline >= 0)) exhausted = true;
+		return exhausted;
+	}
+
+	public long getWork() {
+		return work;
+	}
+
+}
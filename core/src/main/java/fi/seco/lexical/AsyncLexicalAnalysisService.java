@@ -0,0 +1,106 @@
+package fi.seco.lexical;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Adapts a blocking {@link ILexicalAnalysisService} to
+ * {@link IAsyncLexicalAnalysisService} by running the calls on a dedicated,
+ * bounded executor. When both the threads and the queue are full, the
+ * returned future fails with a {@link RejectedExecutionException} instead of
+ * blocking the caller.
+ */
+public class AsyncLexicalAnalysisService<S extends ILexicalAnalysisService> implements IAsyncLexicalAnalysisService, Closeable {
+
+	protected final S service;
+	private final ExecutorService executor;
+
+	public AsyncLexicalAnalysisService(S service, int threads, int queueSize) {
+		this.service = service;
+		final String name = service.getClass().getSimpleName();
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public AsyncLexicalAnalysisService(S service) {
+		this(service, Runtime.getRuntime().availableProcessors(), 1024);
+	}
+
+	public S getService() {
+		return service;
+	}
+
+	/**
+	 * Runs an arbitrary call against the wrapped service on the executor, e.g.
+	 * one of the analyze variants not part of
+	 * {@link ILexicalAnalysisService}.
+	 */
+	public <T> CompletableFuture<T> call(Function<? super S, T> f) {
+		try {
+			return CompletableFuture.supplyAsync(() -> f.apply(service), executor);
+		} catch (RejectedExecutionException e) {
+			CompletableFuture<T> ret = new CompletableFuture<T>();
+			ret.completeExceptionally(e);
+			return ret;
+		}
+	}
+
+	@Override
+	public CompletableFuture<String> summarizeAsync(String string, Locale lang) {
+		return call(s -> s.summarize(string, lang));
+	}
+
+	@Override
+	public CompletableFuture<String> baseformAsync(String string, Locale lang, boolean markSegments, boolean guessUnknown, int maxErrorCorrectDistance) {
+		return call(s -> s.baseform(string, lang, markSegments, guessUnknown, maxErrorCorrectDistance));
+	}
+
+	@Override
+	public CompletableFuture<List<List<String>>> baseformAsync(String string, Locale lang, boolean markSegments, boolean guessUnknown, int maxErrorCorrectDistance, boolean all) {
+		return call(s -> s.baseform(string, lang, markSegments, guessUnknown, maxErrorCorrectDistance, all));
+	}
+
+	@Override
+	public CompletableFuture<String> hyphenateAsync(String string, Locale lang) {
+		return call(s -> s.hyphenate(string, lang));
+	}
+
+	@Override
+	public CompletableFuture<String> inflectAsync(String string, List<String> inflections, boolean markSegments, boolean baseform, boolean guessUnknown, int maxErrorCorrectDistance, Locale lang) {
+		return call(s -> s.inflect(string, inflections, markSegments, baseform, guessUnknown, maxErrorCorrectDistance, lang));
+	}
+
+	@Override
+	public CompletableFuture<Collection<String>> splitAsync(String text, Locale lang) {
+		return call(s -> s.split(text, lang));
+	}
+
+	@Override
+	public CompletableFuture<Collection<String>> tokenizeAsync(String text, Locale lang) {
+		return call(s -> s.tokenize(text, lang));
+	}
+
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+
+}
@@ -0,0 +1,95 @@
+package fi.seco.lexical;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Size-bounded concurrent cache with least recently used eviction. Entries are
+ * spread over independently locked segments so that threads working on
+ * different keys rarely contend.
+ */
+public class BoundedCache<K, V> {
+
+	private static final class Segment<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 1L;
+
+		final ReentrantLock lock = new ReentrantLock();
+		private final int maxSize;
+
+		Segment(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > maxSize;
+		}
+	}
+
+	private final Segment<K, V>[] segments;
+
+	public BoundedCache(int maxSize) {
+		this(maxSize, 16);
+	}
+
+	@SuppressWarnings("unchecked")
+	public BoundedCache(int maxSize, int concurrency) {
+		segments = (Segment<K, V>[]) new Segment<?, ?>[concurrency];
+		int segmentSize = Math.max(1, maxSize / concurrency);
+		for (int i = 0; i < concurrency; i++)
+			segments[i] = new Segment<K, V>(segmentSize);
+	}
+
+	private Segment<K, V> segmentFor(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[(h & 0x7fffffff) % segments.length];
+	}
+
+	public V get(K key) {
+		Segment<K, V> s = segmentFor(key);
+		s.lock.lock();
+		try {
+			return s.get(key);
+		} finally {
+			s.lock.unlock();
+		}
+	}
+
+	public void put(K key, V value) {
+		Segment<K, V> s = segmentFor(key);
+		s.lock.lock();
+		try {
+			s.put(key, value);
+		} finally {
+			s.lock.unlock();
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment<K, V> s : segments) {
+			s.lock.lock();
+			try {
+				size += s.size();
+			} finally {
+				s.lock.unlock();
+			}
+		}
+		return size;
+	}
+
+	public void clear() {
+		for (Segment<K, V> s : segments) {
+			s.lock.lock();
+			try {
+				s.clear();
+			} finally {
+				s.lock.unlock();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,178 @@
+package fi.seco.lexical;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+import fi.seco.lexical.combined.CombinedLexicalAnalysisService;
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService;
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.WordToResults;
+
+/**
+ * Wraps an {@link ILexicalAnalysisService} so that concurrent identical calls
+ * (same method and arguments) share a single computation. The first caller
+ * does the work while the others wait for it, and every caller gets its own
+ * copy of the result. Nothing is kept once the computation is done, so this is
+ * not a cache.
+ */
+public class CoalescingLexicalAnalysisService<S extends ILexicalAnalysisService> implements ILexicalAnalysisService {
+
+	protected final S service;
+	private final ConcurrentHashMap<List<?>, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<List<?>, CompletableFuture<Object>>();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	public CoalescingLexicalAnalysisService(S service) {
+		this.service = service;
+	}
+
+	public S getService() {
+		return service;
+	}
+
+	/**
+	 * @return the number of calls that were served by a computation started by
+	 *         another caller
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Runs an arbitrary call against the wrapped service, sharing it with
+	 * concurrent calls with an equal key, e.g. one of the analyze variants
+	 * without an overload here.
+	 *
+	 * @param key the method name followed by all of its arguments
+	 * @param copy makes the copy of the shared result handed to each caller
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T call(List<?> key, Function<? super S, T> f, UnaryOperator<T> copy) {
+		CompletableFuture<Object> own = new CompletableFuture<Object>();
+		CompletableFuture<Object> shared = inFlight.putIfAbsent(key, own);
+		if (shared == null) {
+			try {
+				own.complete(f.apply(service));
+			} catch (RuntimeException | Error e) {
+				own.completeExceptionally(e);
+				throw e;
+			} finally {
+				inFlight.remove(key, own);
+			}
+			return copy.apply((T) own.join());
+		}
+		coalesced.incrementAndGet();
+		try {
+			return copy.apply((T) shared.join());
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error) throw (Error) e.getCause();
+			throw e;
+		}
+	}
+
+	private static <T> T same(T t) {
+		return t;
+	}
+
+	private static List<List<String>> copyLists(List<List<String>> l) {
+		List<List<String>> ret = new ArrayList<List<String>>(l.size());
+		for (List<String> s : l)
+			ret.add(new ArrayList<String>(s));
+		return ret;
+	}
+
+	private static List<WordToResults> copyResults(List<WordToResults> l) {
+		return l.stream().map(WordToResults::new).collect(Collectors.toList());
+	}
+
+	/**
+	 * {@link HFSTLexicalAnalysisService#analyze(String, Locale, List, boolean, boolean, boolean, int)}
+	 * of the wrapped service, which must be a HFSTLexicalAnalysisService.
+	 */
+	public List<WordToResults> analyze(String str, Locale lang, List<String> inflections, boolean segmentBaseform, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance) {
+		return call(Arrays.asList("analyze", str, lang, new ArrayList<String>(inflections), segmentBaseform, guessUnknown, segmentUnknown, maxErrorCorrectDistance), s -> ((HFSTLexicalAnalysisService) s).analyze(str, lang, inflections, segmentBaseform, guessUnknown, segmentUnknown, maxErrorCorrectDistance), CoalescingLexicalAnalysisService::copyResults);
+	}
+
+	/**
+	 * {@link CombinedLexicalAnalysisService#analyze(String, Locale, List, boolean, boolean, boolean, int, int)}
+	 * of the wrapped service, which must be a CombinedLexicalAnalysisService.
+	 */
+	public List<WordToResults> analyze(String str, Locale lang, List<String> inflections, boolean baseformSegments, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance, int depth) {
+		return call(Arrays.asList("analyze", str, lang, new ArrayList<String>(inflections), baseformSegments, guessUnknown, segmentUnknown, maxErrorCorrectDistance, depth), s -> ((CombinedLexicalAnalysisService) s).analyze(str, lang, inflections, baseformSegments, guessUnknown, segmentUnknown, maxErrorCorrectDistance, depth), CoalescingLexicalAnalysisService::copyResults);
+	}
+
+	@Override
+	public String summarize(String string, Locale lang) {
+		return call(Arrays.asList("summarize", string, lang), s -> s.summarize(string, lang), CoalescingLexicalAnalysisService::same);
+	}
+
+	@Override
+	public Collection<Locale> getSupportedSummarizeLocales() {
+		return service.getSupportedSummarizeLocales();
+	}
+
+	@Override
+	public String baseform(String string, Locale lang, boolean markSegments, boolean guessUnknown, int maxErrorCorrectDistance) {
+		return call(Arrays.asList("baseform", string, lang, markSegments, guessUnknown, maxErrorCorrectDistance), s -> s.baseform(string, lang, markSegments, guessUnknown, maxErrorCorrectDistance), CoalescingLexicalAnalysisService::same);
+	}
+
+	@Override
+	public List<List<String>> baseform(String string, Locale lang, boolean markSegments, boolean guessUnknown, int maxErrorCorrectDistance, boolean all) {
+		return call(Arrays.asList("baseform", string, lang, markSegments, guessUnknown, maxErrorCorrectDistance, all), s -> s.baseform(string, lang, markSegments, guessUnknown, maxErrorCorrectDistance, all), CoalescingLexicalAnalysisService::copyLists);
+	}
+
+	@Override
+	public Collection<Locale> getSupportedBaseformLocales() {
+		return service.getSupportedBaseformLocales();
+	}
+
+	@Override
+	public String hyphenate(String string, Locale lang) {
+		return call(Arrays.asList("hyphenate", string, lang), s -> s.hyphenate(string, lang), CoalescingLexicalAnalysisService::same);
+	}
+
+	@Override
+	public Collection<Locale> getSupportedHyphenationLocales() {
+		return service.getSupportedHyphenationLocales();
+	}
+
+	@Override
+	public String inflect(String string, List<String> inflections, boolean markSegments, boolean baseform, boolean guessUnknown, int maxErrorCorrectDistance, Locale lang) {
+		return call(Arrays.asList("inflect", string, new ArrayList<String>(inflections), markSegments, baseform, guessUnknown, maxErrorCorrectDistance, lang), s -> s.inflect(string, inflections, markSegments, baseform, guessUnknown, maxErrorCorrectDistance, lang), CoalescingLexicalAnalysisService::same);
+	}
+
+	@Override
+	public Collection<Locale> getSupportedInflectionLocales() {
+		return service.getSupportedInflectionLocales();
+	}
+
+	@Override
+	public Collection<Locale> getSupportedSplitLocales() {
+		return service.getSupportedSplitLocales();
+	}
+
+	@Override
+	public Collection<String> split(String text, Locale lang) {
+		return call(Arrays.asList("split", text, lang), s -> s.split(text, lang), c -> new ArrayList<String>(c));
+	}
+
+	@Override
+	public Collection<Locale> getSupportedTokenizationLocales() {
+		return service.getSupportedTokenizationLocales();
+	}
+
+	@Override
+	public Collection<String> tokenize(String text, Locale lang) {
+		return call(Arrays.asList("tokenize", text, lang), s -> s.tokenize(text, lang), c -> new ArrayList<String>(c));
+	}
+
+}
@@ -17,6 +17,13 @@ public class CompoundLexicalAnalysisService implements ILexicalAnalysisService {
 	private final Map<Locale, ILexicalAnalysisService> sps = new HashMap<Locale, ILexicalAnalysisService>();	
 	private final Map<Locale, ILexicalAnalysisService> ts = new HashMap<Locale, ILexicalAnalysisService>();	
 
+	/**
+	 * @param services for each locale and operation, the first service
+	 *            supporting it is used, so e.g. a
+	 *            {@link LuceneStemmerLexicalAnalysisService} listed before a
+	 *            {@link SnowballLexicalAnalysisService} takes over baseforming
+	 *            for the locales they share
+	 */
 	public CompoundLexicalAnalysisService(ILexicalAnalysisService... services) {
 		for (ILexicalAnalysisService s : services) {
 			for (Locale l : s.getSupportedBaseformLocales())
@@ -0,0 +1,73 @@
+package fi.seco.lexical;
+
+/**
+ * Hook for recording where time goes inside the analysis pipeline. The
+ * stage and counter names follow Micrometer naming conventions, so an
+ * implementation can map each stage to a {@code Timer} tagged with
+ * {@link Stage#getTag()} and each counter to a {@code Counter}.
+ * Implementations are called on the hot path from many threads at once and
+ * must be thread-safe and non-blocking.
+ */
+public interface IAnalysisMetrics {
+
+	public enum Stage {
+		SENTENCE_DETECTION, TOKENIZATION, TRANSDUCER_LOOKUP, FUZZY_CORRECTION, GUESSING, BASEFORM_SEGMENTATION, INFLECTION, TAGGING, DISAMBIGUATION, PARSING, TAGGER_LOCK_WAIT, PARSER_LOCK_WAIT;
+
+		public static final String METRIC_NAME = "lexicalanalysis.stage";
+
+		private final String tag = name().toLowerCase().replace('_', '.');
+
+		public String getTag() {
+			return tag;
+		}
+	}
+
+	public enum Counter {
+		TOKENS, UNKNOWN_TOKENS, GUESSED_TOKENS, CLASSIFIED_TOKENS, CACHED_TOKENS, CACHED_SENTENCES, DICTIONARY_TOKENS, FUZZY_CANDIDATES;
+
+		private final String metricName = "lexicalanalysis." + name().toLowerCase().replace('_', '.');
+
+		public String getMetricName() {
+			return metricName;
+		}
+	}
+
+	public void recordTime(Stage stage, long nanos);
+
+	public void increment(Counter counter, long amount);
+
+	/**
+	 * @return the start time to pass to {@link #recordSince(Stage, long)}, or 0
+	 *         if nothing is recorded, so that {@link #NOOP} costs no clock reads
+	 */
+	public default long startTimer() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records the time since start, unless start is 0 because the timer was
+	 * started on {@link #NOOP}.
+	 */
+	public default void recordSince(Stage stage, long start) {
+		if (start != 0) recordTime(stage, System.nanoTime() - start);
+	}
+
+	public static final IAnalysisMetrics NOOP = new IAnalysisMetrics() {
+
+		@Override
+		public void recordTime(Stage stage, long nanos) {}
+
+		@Override
+		public void increment(Counter counter, long amount) {}
+
+		@Override
+		public long startTimer() {
+			return 0;
+		}
+
+		@Override
+		public void recordSince(Stage stage, long start) {}
+
+	};
+
+}
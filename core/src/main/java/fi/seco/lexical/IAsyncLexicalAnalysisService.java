@@ -0,0 +1,28 @@
+package fi.seco.lexical;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking companion to {@link ILexicalAnalysisService}. Each method
+ * mirrors its blocking counterpart, but returns immediately with a future of
+ * the result.
+ */
+public interface IAsyncLexicalAnalysisService {
+	public CompletableFuture<String> summarizeAsync(String string, Locale lang);
+
+	public CompletableFuture<String> baseformAsync(String string, Locale lang, boolean markSegments, boolean guessUnknown, int maxErrorCorrectDistance);
+
+	public CompletableFuture<List<List<String>>> baseformAsync(String string, Locale lang, boolean markSegments, boolean guessUnknown, int maxErrorCorrectDistance, boolean all);
+
+	public CompletableFuture<String> hyphenateAsync(String string, Locale lang);
+
+	public CompletableFuture<String> inflectAsync(String string, List<String> inflections, boolean markSegments, boolean baseform, boolean guessUnknown, int maxErrorCorrectDistance, Locale lang);
+
+	public CompletableFuture<Collection<String>> splitAsync(String text, Locale lang);
+
+	public CompletableFuture<Collection<String>> tokenizeAsync(String text, Locale lang);
+
+}
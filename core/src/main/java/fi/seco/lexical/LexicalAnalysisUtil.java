@@ -1,29 +1,139 @@
 package fi.seco.lexical;
 
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class LexicalAnalysisUtil {
 
+	/**
+	 * Coarse class of a token, with the universal part of speech given to
+	 * tokens of the class that the analysis transducers do not know.
+	 */
+	public enum TokenClass {
+		WORD(null, true), PUNCTUATION("PUNCT", true), SYMBOL("SYM", true), NUMBER("NUM", true), URL("SYM", false), EMAIL("SYM", false), HASHTAG("X", false), MENTION("PROPN", false);
+
+		private final String upos;
+		private final boolean lookup;
+
+		private TokenClass(String upos, boolean lookup) {
+			this.upos = upos;
+			this.lookup = lookup;
+		}
+
+		public String getUpos() {
+			return upos;
+		}
+
+		/**
+		 * @return whether the analysis transducers may know tokens of this
+		 *         class. Tokens of other classes are not worth looking up.
+		 */
+		public boolean isLookup() {
+			return lookup;
+		}
+	}
+
 	private final static Pattern sp = Pattern.compile("\\p{P}*(^|\\s+|$)\\p{P}*");
 	private final static Pattern dp = Pattern.compile("([^\\p{C}\\p{P}\\s\\p{S}]+)");
-	
-	private final static Pattern sentenceSplit = Pattern.compile("(?<=[.?!;])\\s+(?=\\p{Lu})");
 
 	private final static Pattern numbers = Pattern.compile("\\p{N}+");
 
 	public static Collection<String> tokenize(String str) {
-		return Arrays.asList(sp.split(str));
+		return tokenSpans(str).asStrings();
 	}
-	
+
 	public static Collection<String> split(String str) {
-		return Arrays.asList(sentenceSplit.split(str));
+		return sentenceSpans(str).asStrings();
 	}
 
 	public static String normalize(String str) {
-		return sp.matcher(str).replaceAll(" ").trim();
+		TextSpans spans = tokenSpans(str);
+		StringBuilder sb = new StringBuilder(str.length());
+		for (int i = 0; i < spans.size(); i++) {
+			if (i > 0) sb.append(' ');
+			sb.append(str, spans.start(i), spans.end(i));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Splits the text into tokens at whitespace, together with any
+	 * punctuation touching the whitespace. Punctuation at the start and end of
+	 * the text is dropped. Punctuation inside a token (e.g. "esim.ks.", "1,5")
+	 * is kept.
+	 */
+	public static TextSpans tokenSpans(CharSequence str) {
+		int len = str.length();
+		TextSpans ret = new TextSpans(str, len / 6 + 1);
+		int start = -1;
+		int i = 0;
+		while (i < len) {
+			int runStart = i;
+			boolean space = false;
+			for (int c; i < len; i += Character.charCount(c)) {
+				c = Character.codePointAt(str, i);
+				if (isSpace(c)) space = true;
+				else if (!isPunctuation(c)) break;
+			}
+			if (start == -1) start = i;
+			else if (space || i == len) {
+				ret.add(start, runStart);
+				start = i;
+			}
+			for (int c; i < len; i += Character.charCount(c)) {
+				c = Character.codePointAt(str, i);
+				if (isSpace(c) || isPunctuation(c)) break;
+			}
+		}
+		if (start != -1 && start < len) ret.add(start, len);
+		return ret;
+	}
+
+	/**
+	 * Splits the text into sentences at whitespace following one of .?!; and
+	 * preceding an uppercase letter. The whitespace is not part of either
+	 * sentence.
+	 */
+	public static TextSpans sentenceSpans(CharSequence str) {
+		int len = str.length();
+		TextSpans ret = new TextSpans(str, len / 80 + 1);
+		int start = 0;
+		for (int i = 1; i < len; i++) {
+			if (!isSpace(str.charAt(i))) continue;
+			char prev = str.charAt(i - 1);
+			if (prev != '.' && prev != '?' && prev != '!' && prev != ';') continue;
+			int end = i;
+			while (++i < len && isSpace(str.charAt(i)));
+			if (i < len && Character.getType(Character.codePointAt(str, i)) == Character.UPPERCASE_LETTER) {
+				ret.add(start, end);
+				start = i;
+			}
+		}
+		if (len > 0) ret.add(start, len);
+		return ret;
+	}
+
+	/**
+	 * @return whether the character is whitespace in the sense of \s
+	 */
+	private static boolean isSpace(int c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	private static boolean isPunctuation(int c) {
+		switch (Character.getType(c)) {
+			case Character.CONNECTOR_PUNCTUATION:
+			case Character.DASH_PUNCTUATION:
+			case Character.START_PUNCTUATION:
+			case Character.END_PUNCTUATION:
+			case Character.INITIAL_QUOTE_PUNCTUATION:
+			case Character.FINAL_QUOTE_PUNCTUATION:
+			case Character.OTHER_PUNCTUATION:
+				return true;
+			default:
+				return false;
+		}
 	}
 
 	public static Matcher spaceMatcher(String str) {
@@ -37,4 +147,83 @@ public class LexicalAnalysisUtil {
 	public static boolean isNumber(String str) {
 		return numbers.matcher(str).matches();
 	}
+
+	/**
+	 * Classifies a token by its characters alone. Numbers may contain single
+	 * separators (.,:/-) between digits.
+	 */
+	public static TokenClass classify(String str) {
+		int len = str.length();
+		if (len == 0) return TokenClass.WORD;
+		char first = str.charAt(0);
+		if ((first == '#' || first == '@') && len > 1 && isTagBody(str)) return first == '#' ? TokenClass.HASHTAG : TokenClass.MENTION;
+		if (isUrl(str)) return TokenClass.URL;
+		if (isEmail(str)) return TokenClass.EMAIL;
+		boolean digits = false;
+		boolean symbols = false;
+		boolean separated = false;
+		char prev = 0;
+		for (int i = 0; i < len; i++) {
+			char c = str.charAt(i);
+			switch (Character.getType(c)) {
+				case Character.DECIMAL_DIGIT_NUMBER:
+				case Character.LETTER_NUMBER:
+				case Character.OTHER_NUMBER:
+					digits = true;
+					break;
+				case Character.CONNECTOR_PUNCTUATION:
+				case Character.DASH_PUNCTUATION:
+				case Character.START_PUNCTUATION:
+				case Character.END_PUNCTUATION:
+				case Character.INITIAL_QUOTE_PUNCTUATION:
+				case Character.FINAL_QUOTE_PUNCTUATION:
+				case Character.OTHER_PUNCTUATION:
+					if (i == 0 || i == len - 1 || !isNumberSeparator(c) || isNumberSeparator(prev)) separated = true;
+					break;
+				case Character.MATH_SYMBOL:
+				case Character.CURRENCY_SYMBOL:
+				case Character.MODIFIER_SYMBOL:
+				case Character.OTHER_SYMBOL:
+					symbols = true;
+					break;
+				default:
+					return TokenClass.WORD;
+			}
+			prev = c;
+		}
+		if (!digits) return symbols ? TokenClass.SYMBOL : TokenClass.PUNCTUATION;
+		return symbols || separated ? TokenClass.WORD : TokenClass.NUMBER;
+	}
+
+	private static boolean isNumberSeparator(char c) {
+		return c == '.' || c == ',' || c == ':' || c == '/' || c == '-';
+	}
+
+	private static boolean isTagBody(String str) {
+		for (int i = 1; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (!Character.isLetterOrDigit(c) && c != '_') return false;
+		}
+		return true;
+	}
+
+	private static boolean isUrl(String str) {
+		int i = str.indexOf("://");
+		if (i > 0 && i + 3 < str.length()) {
+			if (!Character.isLetter(str.charAt(0))) return false;
+			for (int j = 1; j < i; j++) {
+				char c = str.charAt(j);
+				if (!Character.isLetterOrDigit(c) && c != '+' && c != '-' && c != '.') return false;
+			}
+			return true;
+		}
+		return str.length() > 4 && str.regionMatches(true, 0, "www.", 0, 4);
+	}
+
+	private static boolean isEmail(String str) {
+		int at = str.indexOf('@');
+		if (at <= 0 || at != str.lastIndexOf('@')) return false;
+		int dot = str.lastIndexOf('.');
+		return dot > at + 1 && dot < str.length() - 1;
+	}
 }
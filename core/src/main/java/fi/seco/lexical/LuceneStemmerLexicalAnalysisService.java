@@ -0,0 +1,134 @@
+package fi.seco.lexical;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.apache.lucene.analysis.de.GermanLightStemmer;
+import org.apache.lucene.analysis.de.GermanMinimalStemmer;
+import org.apache.lucene.analysis.en.EnglishMinimalStemmer;
+import org.apache.lucene.analysis.es.SpanishLightStemmer;
+import org.apache.lucene.analysis.fi.FinnishLightStemmer;
+import org.apache.lucene.analysis.fr.FrenchLightStemmer;
+import org.apache.lucene.analysis.fr.FrenchMinimalStemmer;
+import org.apache.lucene.analysis.gl.GalicianMinimalStemmer;
+import org.apache.lucene.analysis.hu.HungarianLightStemmer;
+import org.apache.lucene.analysis.it.ItalianLightStemmer;
+import org.apache.lucene.analysis.no.NorwegianLightStemmer;
+import org.apache.lucene.analysis.no.NorwegianMinimalStemmer;
+import org.apache.lucene.analysis.pt.PortugueseLightStemmer;
+import org.apache.lucene.analysis.pt.PortugueseMinimalStemmer;
+import org.apache.lucene.analysis.ru.RussianLightStemmer;
+import org.apache.lucene.analysis.sv.SwedishLightStemmer;
+
+/**
+ * Baseforms with the light (or minimal) stemmers of Lucene. These are much
+ * cheaper than the Snowball stemmers and keep no state, so a single instance
+ * per locale is shared by all threads without locking. Like the Lucene
+ * filters wrapping them, the stemmers expect lowercase input, so the
+ * baseforms are lowercase.
+ */
+public class LuceneStemmerLexicalAnalysisService extends ALexicalAnalysisService {
+
+	private interface Stemmer {
+		public int stem(char[] s, int len);
+	}
+
+	private final Map<Locale, Stemmer> s = new HashMap<Locale, Stemmer>();
+
+	public LuceneStemmerLexicalAnalysisService() {
+		this(false);
+	}
+
+	/**
+	 * @param minimal use the minimal stemmers, which mostly only remove plural
+	 *            endings, for the locales that have one
+	 */
+	public LuceneStemmerLexicalAnalysisService(boolean minimal) {
+		s.put(new Locale("de"), minimal ? new GermanMinimalStemmer()::stem : new GermanLightStemmer()::stem);
+		s.put(new Locale("en"), new EnglishMinimalStemmer()::stem);
+		s.put(new Locale("es"), new SpanishLightStemmer()::stem);
+		s.put(new Locale("fi"), new FinnishLightStemmer()::stem);
+		s.put(new Locale("fr"), minimal ? new FrenchMinimalStemmer()::stem : new FrenchLightStemmer()::stem);
+		s.put(new Locale("gl"), new GalicianMinimalStemmer()::stem);
+		s.put(new Locale("hu"), new HungarianLightStemmer()::stem);
+		s.put(new Locale("it"), new ItalianLightStemmer()::stem);
+		s.put(new Locale("no"), minimal ? new NorwegianMinimalStemmer(NorwegianLightStemmer.BOKMAAL)::stem : new NorwegianLightStemmer(NorwegianLightStemmer.BOKMAAL)::stem);
+		s.put(new Locale("pt"), minimal ? new PortugueseMinimalStemmer()::stem : new PortugueseLightStemmer()::stem);
+		s.put(new Locale("ru"), new RussianLightStemmer()::stem);
+		s.put(new Locale("sv"), new SwedishLightStemmer()::stem);
+	}
+
+	/**
+	 * Stems each run of letters, separating the stems with a space, like
+	 * {@link SnowballLexicalAnalysisService} does.
+	 */
+	@Override
+	public String baseform(String string, Locale lang, boolean markSegments, boolean guessUnknown, int maxErrorCorrectDistance) {
+		if (lang == null) return string;
+		Stemmer stemmer = s.get(new Locale(lang.getLanguage()));
+		if (stemmer == null) return string;
+		String lower = string.toLowerCase(lang);
+		int len = lower.length();
+		StringBuilder sb = new StringBuilder(len);
+		char[] word = new char[32];
+		int i = 0;
+		while (i < len) {
+			int c;
+			while (i < len && !Character.isLetter(c = lower.codePointAt(i)))
+				i += Character.charCount(c);
+			int start = i;
+			while (i < len && Character.isLetter(c = lower.codePointAt(i)))
+				i += Character.charCount(c);
+			if (start == i) break;
+			if (i - start > word.length) word = new char[i - start];
+			lower.getChars(start, i, word, 0);
+			sb.append(word, 0, stemmer.stem(word, i - start)).append(' ');
+		}
+		if (sb.length() > 0) sb.setLength(sb.length() - 1);
+		return sb.toString();
+	}
+
+	@Override
+	public Collection<Locale> getSupportedBaseformLocales() {
+		return s.keySet();
+	}
+
+	private static void benchmark(String name, ILexicalAnalysisService las, List<String> lines, Locale lang, int rounds, boolean parallel) {
+		long words = 0;
+		for (String line : lines)
+			words += line.split("\\P{IsL}+").length;
+		for (int round = 0; round <= rounds; round++) {
+			long time = System.nanoTime();
+			IntStream is = IntStream.range(0, lines.size());
+			if (parallel) is = is.parallel();
+			is.forEach(i -> las.baseform(lines.get(i), lang, false, false, 0));
+			time = System.nanoTime() - time;
+			if (round > 0) System.out.println(name + (parallel ? " parallel" : "") + ": " + (words * 1000000000L / time) + " words/s");
+		}
+	}
+
+	/**
+	 * Compares the throughput to {@link SnowballLexicalAnalysisService} on the
+	 * lines of a text file. Arguments: file, locale and number of rounds after
+	 * a warm-up round.
+	 */
+	public static void main(String[] args) throws IOException {
+		List<String> lines = Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8);
+		Locale lang = new Locale(args[1]);
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		for (boolean parallel : new boolean[] { false, true }) {
+			benchmark("Snowball", new SnowballLexicalAnalysisService(), lines, lang, rounds, parallel);
+			benchmark("Lucene light", new LuceneStemmerLexicalAnalysisService(), lines, lang, rounds, parallel);
+			benchmark("Lucene minimal", new LuceneStemmerLexicalAnalysisService(true), lines, lang, rounds, parallel);
+		}
+	}
+
+}
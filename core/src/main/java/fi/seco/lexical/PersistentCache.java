@@ -0,0 +1,218 @@
+package fi.seco.lexical;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.carrotsearch.hppc.LongIntHashMap;
+
+/**
+ * Append-only key-value store in a memory-mapped file, meant for caching
+ * analysis results across runs. Several JVMs on the same host can use the
+ * same file at once: appends are serialized with a file lock, and records are
+ * only published by bumping the committed length in the header after they
+ * have been written, so readers never see partial records. Each JVM indexes
+ * the records appended by others the next time it looks something up. Use a
+ * single instance per file within a JVM.
+ *
+ * Records are never removed. Once the file reaches its maximum size, further
+ * puts are ignored. Delete the file to start over.
+ */
+public class PersistentCache implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(PersistentCache.class);
+
+	private static final int MAGIC = 0x534c4143;
+	private static final int VERSION = 1;
+	private static final int COMMITTED = 8;
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_HEADER_SIZE = 12;
+	private static final int GROWTH = 16 * 1024 * 1024;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int maxSize;
+	private volatile MappedByteBuffer buffer;
+	private final LongIntHashMap index = new LongIntHashMap();
+	private volatile int indexed = HEADER_SIZE;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public PersistentCache(File f) throws IOException {
+		this(f, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param maxSize maximum size of the file in bytes, at most 2GB
+	 */
+	public PersistentCache(File f, int maxSize) throws IOException {
+		this.maxSize = maxSize;
+		this.file = new RandomAccessFile(f, "rw");
+		this.channel = file.getChannel();
+		FileLock l = null;
+		try {
+			l = channel.lock();
+			if (channel.size() < HEADER_SIZE) {
+				file.setLength(Math.min(maxSize, GROWTH));
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION).putInt(HEADER_SIZE).putInt(0).flip();
+				channel.write(header, 0);
+			}
+			map();
+			if (buffer.getInt(0) != MAGIC) throw new IOException(f + " is not an analysis cache file");
+			if (buffer.getInt(4) != VERSION) throw new IOException(f + " has unsupported cache version " + buffer.getInt(4));
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		} finally {
+			if (l != null && l.isValid()) l.release();
+		}
+		catchUp();
+	}
+
+	private void map() throws IOException {
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+	}
+
+	/**
+	 * @return the hash records are indexed by, 64-bit FNV-1a by default
+	 */
+	protected long hash(byte[] key) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : key) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	private static int checksum(ByteBuffer b, int offset, int length) {
+		CRC32 crc = new CRC32();
+		ByteBuffer d = b.duplicate();
+		d.position(offset);
+		d.limit(offset + length);
+		crc.update(d);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Indexes the records committed since the last call, including those
+	 * appended by other processes.
+	 */
+	private void catchUp() throws IOException {
+		lock.writeLock().lock();
+		try {
+			int committed = buffer.getInt(COMMITTED);
+			if (committed > buffer.capacity()) map();
+			MappedByteBuffer b = buffer;
+			int offset = indexed;
+			while (offset < committed) {
+				int keyLength = b.getInt(offset);
+				int valueLength = b.getInt(offset + 4);
+				int start = offset + RECORD_HEADER_SIZE;
+				if (keyLength < 0 || valueLength < 0 || (long) start + keyLength + valueLength > committed) {
+					log.warn("Corrupt record at " + offset + ", ignoring the rest of the cache");
+					offset = committed;
+					break;
+				}
+				if (checksum(b, start, keyLength + valueLength) == b.getInt(offset + 8)) {
+					byte[] key = new byte[keyLength];
+					ByteBuffer d = b.duplicate();
+					d.position(start);
+					d.get(key);
+					index.put(hash(key), offset);
+				}
+				offset = start + keyLength + valueLength;
+			}
+			indexed = offset;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the value last stored for the key, or null, also if a key with
+	 *         the same hash has been stored since
+	 */
+	public byte[] get(byte[] key) throws IOException {
+		if (buffer.getInt(COMMITTED) > indexed) catchUp();
+		lock.readLock().lock();
+		try {
+			int offset = index.getOrDefault(hash(key), 0);
+			if (offset == 0) return null;
+			ByteBuffer b = buffer.duplicate();
+			b.position(offset);
+			if (b.getInt() != key.length) return null;
+			byte[] value = new byte[b.getInt()];
+			b.getInt();
+			for (byte k : key)
+				if (b.get() != k) return null;
+			b.get(value);
+			return value;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends the value for the key. Ignored if the file is full.
+	 */
+	public void put(byte[] key, byte[] value) throws IOException {
+		int length = RECORD_HEADER_SIZE + key.length + value.length;
+		lock.writeLock().lock();
+		try {
+			FileLock l = channel.lock();
+			try {
+				if (channel.size() > buffer.capacity()) map();
+				int committed = buffer.getInt(COMMITTED);
+				if ((long) committed + length > maxSize) return;
+				if (committed + length > buffer.capacity()) {
+					file.setLength(Math.min(maxSize, ((long) committed + length + GROWTH - 1) / GROWTH * GROWTH));
+					map();
+				}
+				ByteBuffer b = buffer.duplicate();
+				b.position(committed + RECORD_HEADER_SIZE);
+				b.put(key).put(value);
+				b.position(committed);
+				b.putInt(key.length).putInt(value.length).putInt(checksum(b, committed + RECORD_HEADER_SIZE, key.length + value.length));
+				buffer.putInt(COMMITTED, committed + length);
+			} finally {
+				l.release();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		catchUp();
+	}
+
+	/**
+	 * @return the number of distinct keys indexed so far
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return index.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			file.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+}
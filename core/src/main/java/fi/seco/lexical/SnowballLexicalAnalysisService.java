@@ -4,6 +4,8 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.regex.Pattern;
 
 import org.tartarus.snowball.SnowballProgram;
@@ -22,21 +24,37 @@ import org.tartarus.snowball.ext.SwedishStemmer;
 
 public class SnowballLexicalAnalysisService extends ALexicalAnalysisService {
 
-	private final Map<Locale, SnowballProgram> s = new HashMap<Locale, SnowballProgram>();
+	private final Map<Locale, Class<? extends SnowballProgram>> s = new HashMap<Locale, Class<? extends SnowballProgram>>();
 	{
-		s.put(new Locale("dk"), new DanishStemmer());
-		s.put(new Locale("nl"), new DutchStemmer());
-		s.put(new Locale("en"), new EnglishStemmer());
-		s.put(new Locale("fi"), new FinnishStemmer());
-		s.put(new Locale("fr"), new FrenchStemmer());
-		s.put(new Locale("fr"), new FrenchStemmer());
-		s.put(new Locale("de"), new GermanStemmer());
-		s.put(new Locale("it"), new ItalianStemmer());
-		s.put(new Locale("no"), new NorwegianStemmer());
-		s.put(new Locale("pt"), new PortugueseStemmer());
-		s.put(new Locale("ru"), new RussianStemmer());
-		s.put(new Locale("es"), new SpanishStemmer());
-		s.put(new Locale("sv"), new SwedishStemmer());
+		s.put(new Locale("dk"), DanishStemmer.class);
+		s.put(new Locale("nl"), DutchStemmer.class);
+		s.put(new Locale("en"), EnglishStemmer.class);
+		s.put(new Locale("fi"), FinnishStemmer.class);
+		s.put(new Locale("fr"), FrenchStemmer.class);
+		s.put(new Locale("de"), GermanStemmer.class);
+		s.put(new Locale("it"), ItalianStemmer.class);
+		s.put(new Locale("no"), NorwegianStemmer.class);
+		s.put(new Locale("pt"), PortugueseStemmer.class);
+		s.put(new Locale("ru"), RussianStemmer.class);
+		s.put(new Locale("es"), SpanishStemmer.class);
+		s.put(new Locale("sv"), SwedishStemmer.class);
+	}
+
+	/** Stemmers are stateful, so each call borrows one from a per-locale pool instead of locking a shared instance. */
+	private final Map<Locale, ConcurrentLinkedQueue<SnowballProgram>> pools = new ConcurrentHashMap<Locale, ConcurrentLinkedQueue<SnowballProgram>>();
+
+	private SnowballProgram borrow(Locale lang) {
+		SnowballProgram sbp = pools.computeIfAbsent(lang, l -> new ConcurrentLinkedQueue<SnowballProgram>()).poll();
+		if (sbp != null) return sbp;
+		try {
+			return s.get(lang).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Couldn't instantiate stemmer for " + lang, e);
+		}
+	}
+
+	private void release(Locale lang, SnowballProgram sbp) {
+		pools.get(lang).offer(sbp);
 	}
 
 	private final static Pattern sp = Pattern.compile("\\P{IsL}+");
@@ -46,9 +64,9 @@ public class SnowballLexicalAnalysisService extends ALexicalAnalysisService {
 		if (lang == null) return string;
 		lang = new Locale(lang.getLanguage());
 		if (s.containsKey(lang)) {
-			SnowballProgram sbp = s.get(lang);
-			StringBuilder sb = new StringBuilder();
-			synchronized (sbp) {
+			SnowballProgram sbp = borrow(lang);
+			try {
+				StringBuilder sb = new StringBuilder();
 				String[] labels = sp.split(string);
 				for (int i = 0; i < labels.length; i++) {
 					sbp.setCurrent(labels[i]);
@@ -57,6 +75,8 @@ public class SnowballLexicalAnalysisService extends ALexicalAnalysisService {
 					sb.append(' ');
 				}
 				return sb.toString().trim();
+			} finally {
+				release(lang, sbp);
 			}
 		}
 		return string;
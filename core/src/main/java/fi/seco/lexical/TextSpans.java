@@ -0,0 +1,82 @@
+package fi.seco.lexical;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Spans of a text, kept as start and end offsets into the original text.
+ * Strings are only created for the spans asked for.
+ */
+public final class TextSpans {
+
+	private final CharSequence text;
+	private int[] offsets;
+	private int size;
+
+	public TextSpans(CharSequence text) {
+		this(text, 8);
+	}
+
+	public TextSpans(CharSequence text, int expectedSize) {
+		this.text = text;
+		this.offsets = new int[Math.max(1, expectedSize) * 2];
+	}
+
+	public void add(int start, int end) {
+		if (size * 2 == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		offsets[size * 2] = start;
+		offsets[size * 2 + 1] = end;
+		size++;
+	}
+
+	public CharSequence getText() {
+		return text;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int start(int i) {
+		if (i >= size) throw new IndexOutOfBoundsException(String.valueOf(i));
+		return offsets[i * 2];
+	}
+
+	public int end(int i) {
+		if (i >= size) throw new IndexOutOfBoundsException(String.valueOf(i));
+		return offsets[i * 2 + 1];
+	}
+
+	public String get(int i) {
+		return text.subSequence(start(i), end(i)).toString();
+	}
+
+	/**
+	 * @return the spans as a list of strings, each created when first asked
+	 *         for
+	 */
+	public List<String> asStrings() {
+		return new Strings();
+	}
+
+	private final class Strings extends AbstractList<String> implements RandomAccess {
+
+		private final String[] strings = new String[size];
+
+		@Override
+		public String get(int i) {
+			String s = strings[i];
+			if (s == null) strings[i] = s = TextSpans.this.get(i);
+			return s;
+		}
+
+		@Override
+		public int size() {
+			return strings.length;
+		}
+
+	}
+
+}
@@ -0,0 +1,183 @@
+package fi.seco.lexical.combined;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.ByteSequenceOutputs;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.seco.lexical.AnalysisBudget;
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.Result;
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.WordToResults;
+
+/**
+ * Precompiled surface form to baseform dictionary, stored as a Lucene FST.
+ * Each baseform is stored as the number of characters to strip from the end
+ * of the surface form followed by the suffix to append, so that regular
+ * inflections share their outputs.
+ *
+ * The dictionary of a locale is built with {@link #main(String[])} from its
+ * most frequent surface forms, by running the full disambiguating analysis on
+ * each form on its own. {@link CombinedLexicalAnalysisService} picks it up
+ * when it is placed next to the other models of the locale as
+ * <code>&lt;lang&gt;-baseforms.fst</code> and listed in their resources.lst,
+ * and uses it once enabled with
+ * {@link CombinedLexicalAnalysisService#setUseBaseformDictionary(boolean)}.
+ * Rebuild it whenever the transducers or models change.
+ */
+public final class BaseformDictionary {
+	private static final Logger log = LoggerFactory.getLogger(BaseformDictionary.class);
+
+	private static final String CODEC = "SecoBaseforms";
+	private static final int VERSION = 1;
+
+	private final FST<BytesRef> fst;
+
+	private BaseformDictionary(FST<BytesRef> fst) {
+		this.fst = fst;
+	}
+
+	public static BaseformDictionary read(InputStream in) throws IOException {
+		DataInput di = new InputStreamDataInput(new BufferedInputStream(in));
+		CodecUtil.checkHeader(di, CODEC, VERSION, VERSION);
+		return new BaseformDictionary(new FST<BytesRef>(di, ByteSequenceOutputs.getSingleton()));
+	}
+
+	public void write(OutputStream out) throws IOException {
+		DataOutput o = new OutputStreamDataOutput(out);
+		CodecUtil.writeHeader(o, CODEC, VERSION);
+		fst.save(o);
+	}
+
+	/**
+	 * @param baseforms baseforms by surface form
+	 */
+	public static BaseformDictionary build(Map<String, String> baseforms) throws IOException {
+		TreeMap<BytesRef, BytesRef> sorted = new TreeMap<BytesRef, BytesRef>();
+		for (Map.Entry<String, String> e : baseforms.entrySet()) {
+			BytesRef output = encode(e.getKey(), e.getValue());
+			if (!e.getKey().isEmpty() && output != null) sorted.put(new BytesRef(e.getKey()), output);
+		}
+		if (sorted.isEmpty()) throw new IllegalArgumentException("No baseforms to build a dictionary from");
+		Builder<BytesRef> b = new Builder<BytesRef>(FST.INPUT_TYPE.BYTE1, ByteSequenceOutputs.getSingleton());
+		IntsRefBuilder scratch = new IntsRefBuilder();
+		for (Map.Entry<BytesRef, BytesRef> e : sorted.entrySet())
+			b.add(Util.toIntsRef(e.getKey(), scratch), e.getValue());
+		return new BaseformDictionary(b.finish());
+	}
+
+	private static BytesRef encode(String form, String baseform) {
+		int prefix = 0;
+		int max = Math.min(form.length(), baseform.length());
+		while (prefix < max && form.charAt(prefix) == baseform.charAt(prefix))
+			prefix++;
+		if (prefix > 0 && Character.isHighSurrogate(form.charAt(prefix - 1))) prefix--;
+		int strip = form.length() - prefix;
+		if (strip > 255) return null;
+		byte[] suffix = baseform.substring(prefix).getBytes(StandardCharsets.UTF_8);
+		byte[] ret = new byte[suffix.length + 1];
+		ret[0] = (byte) strip;
+		System.arraycopy(suffix, 0, ret, 1, suffix.length);
+		return new BytesRef(ret);
+	}
+
+	/**
+	 * @return the baseform of the surface form, or null if it is not in the
+	 *         dictionary
+	 */
+	public String get(String form) {
+		BytesRef output;
+		try {
+			output = Util.get(fst, new BytesRef(form));
+		} catch (IOException e) {
+			throw new IOError(e);
+		}
+		if (output == null) return null;
+		int strip = output.bytes[output.offset] & 0xff;
+		return form.substring(0, form.length() - strip) + new String(output.bytes, output.offset + 1, output.length - 1, StandardCharsets.UTF_8);
+	}
+
+	public long ramBytesUsed() {
+		return fst.ramBytesUsed();
+	}
+
+	private static boolean isWord(String form) {
+		for (int i = 0; i < form.length(); i++)
+			if (!Character.isLetterOrDigit(form.charAt(i))) return false;
+		return true;
+	}
+
+	/**
+	 * Builds the dictionary of a locale.
+	 *
+	 * Arguments: locale, a surface form frequency list with lines of the form
+	 * "count form", the number of most frequent forms to include and the file
+	 * to write the dictionary to. Forms the analysis doesn't know, or doesn't
+	 * keep as a single token of letters and digits, are left out.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 4) {
+			System.err.println("Usage: BaseformDictionary <lang> <frequency list> <forms> <output file>");
+			System.exit(1);
+		}
+		Locale lang = new Locale(args[0]);
+		int n = Integer.parseInt(args[2]);
+		List<String> forms = new ArrayList<String>();
+		Map<String, Long> counts = new HashMap<String, Long>();
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(args[1]), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = r.readLine()) != null) {
+				String[] parts = line.trim().split(" ", 2);
+				if (parts.length != 2 || parts[1].isEmpty() || !isWord(parts[1])) continue;
+				if (counts.put(parts[1], Long.parseLong(parts[0])) == null) forms.add(parts[1]);
+			}
+		}
+		forms.sort((a, b) -> Long.compare(counts.get(b), counts.get(a)));
+		if (forms.size() > n) forms = forms.subList(0, n);
+		CombinedLexicalAnalysisService las = new CombinedLexicalAnalysisService();
+		las.setUseBaseformDictionary(false); // never copy an earlier dictionary
+		Map<String, String> baseforms = new HashMap<String, String>();
+		for (String form : forms) {
+			List<WordToResults> crc = las.analyze(form, lang, Collections.<String>emptyList(), false, false, false, 0, 1, Integer.MAX_VALUE, true, AnalysisBudget.UNLIMITED);
+			if (crc.size() != 1 || !crc.get(0).getWord().equals(form)) continue;
+			boolean known = true;
+			for (Result res : crc.get(0).getAnalysis())
+				if (res.getGlobalTags().containsKey("BEST_MATCH") && res.getGlobalTags().containsKey("UNKNOWN")) known = false;
+			if (known) baseforms.put(form, las.baseform(form, lang, false, false, 0, 1));
+		}
+		BaseformDictionary d = build(baseforms);
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[3]))) {
+			d.write(out);
+		}
+		log.info("Wrote " + baseforms.size() + " baseforms of " + forms.size() + " forms to " + args[3] + ", " + d.ramBytesUsed() + " bytes");
+		System.exit(0);
+	}
+
+}
@@ -9,6 +9,10 @@ import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
@@ -17,12 +21,16 @@ import java.util.zip.ZipInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.carrotsearch.hppc.ObjectIntHashMap;
 import com.carrotsearch.hppc.ObjectLongHashMap;
 import com.carrotsearch.hppc.ObjectLongMap;
-import com.carrotsearch.hppc.procedures.ObjectIntProcedure;
 
 import fi.seco.hfst.Transducer;
+import fi.seco.lexical.AnalysisBudget;
+import fi.seco.lexical.BoundedCache;
+import fi.seco.lexical.IAnalysisMetrics.Counter;
+import fi.seco.lexical.IAnalysisMetrics.Stage;
+import fi.seco.lexical.LexicalAnalysisUtil;
+import fi.seco.lexical.LexicalAnalysisUtil.TokenClass;
 import fi.seco.lexical.hfst.HFSTLexicalAnalysisService;
 import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.Result.WordPart;
 import is2.data.Cluster;
@@ -40,23 +48,26 @@ import is2.util.DB;
 import marmot.core.Tagger;
 import marmot.morph.Sentence;
 import marmot.morph.Word;
-import marmot.util.StringUtils;
 import opennlp.tools.sentdetect.SentenceDetector;
 import opennlp.tools.sentdetect.SentenceDetectorME;
 import opennlp.tools.sentdetect.SentenceModel;
 import opennlp.tools.tokenize.Tokenizer;
 import opennlp.tools.tokenize.TokenizerME;
 import opennlp.tools.tokenize.TokenizerModel;
+import opennlp.tools.util.StringUtil;
 
 public class CombinedLexicalAnalysisService extends HFSTLexicalAnalysisService {
 
 	private static final Logger log = LoggerFactory.getLogger(CombinedLexicalAnalysisService.class);
 
-	private final Map<Locale, SentenceModel> sdMap = new HashMap<>();
-	private final Map<Locale, TokenizerModel> tMap = new HashMap<>();
-	private final Map<Locale, ObjectLongMap<String>> fMap = new HashMap<>();
+	private final Map<Locale, SentenceModel> sdMap = new ConcurrentHashMap<>();
+	private final Map<Locale, TokenizerModel> tMap = new ConcurrentHashMap<>();
+	private final Map<Locale, ObjectLongMap<String>> fMap = new ConcurrentHashMap<>();
+
+	private final Map<Locale, BaseformDictionary> bdMap = new ConcurrentHashMap<>();
 
 	private final static Set<Locale> supportedLocales = new HashSet<>();
+	private final static Set<Locale> baseformDictionaryLocales = new HashSet<>();
 
 	static {
 		List<String> resources = new ArrayList<String>();
@@ -72,6 +83,70 @@ public class CombinedLexicalAnalysisService extends HFSTLexicalAnalysisService {
 			throw new IllegalArgumentException("Couldn't read transducer information");
 		}
 		resources.stream().filter(r -> r.endsWith("-sent.bin")).forEach(r -> supportedLocales.add(new Locale(r.substring(0, r.indexOf('-')))));
+		resources.stream().filter(r -> r.endsWith("-baseforms.fst")).forEach(r -> baseformDictionaryLocales.add(new Locale(r.substring(0, r.indexOf('-')))));
+	}
+
+	private volatile boolean useBaseformDictionary = false;
+
+	/**
+	 * Sets whether baseform consults the precompiled
+	 * {@link BaseformDictionary} of the locale, if one is on the classpath.
+	 * Its baseforms are those of each word analyzed on its own, not
+	 * disambiguated in context, so this is off by default.
+	 */
+	public void setUseBaseformDictionary(boolean useBaseformDictionary) {
+		this.useBaseformDictionary = useBaseformDictionary;
+	}
+
+	public boolean getUseBaseformDictionary() {
+		return useBaseformDictionary;
+	}
+
+	private BaseformDictionary getBaseformDictionary(Locale lang) {
+		if (!baseformDictionaryLocales.contains(lang)) return null;
+		BaseformDictionary bd = bdMap.get(lang);
+		if (bd != null) return bd;
+		try (InputStream in = CombinedLexicalAnalysisService.class.getResourceAsStream(lang + "-baseforms.fst")) {
+			bd = BaseformDictionary.read(in);
+			bdMap.put(lang, bd);
+			return bd;
+		} catch (IOException e) {
+			throw new IOError(e);
+		}
+	}
+
+	/**
+	 * Baseforms the string from the precompiled dictionary, without touching
+	 * the transducers or models.
+	 *
+	 * @return null unless every whitespace delimited chunk of the string is
+	 *         found in the dictionary
+	 */
+	private String dictionaryBaseform(String string, Locale lang) {
+		BaseformDictionary bd = getBaseformDictionary(lang);
+		if (bd == null) return null;
+		StringBuilder ret = new StringBuilder(string.length());
+		int len = string.length();
+		int tokens = 0;
+		int i = 0;
+		while (i < len) {
+			int start = i;
+			while (i < len && StringUtil.isWhitespace(string.charAt(i)))
+				i++;
+			ret.append(string, start, i);
+			if (i == len) break;
+			start = i;
+			while (i < len && !StringUtil.isWhitespace(string.charAt(i)))
+				i++;
+			// entries are only words the tokenizer keeps whole, see BaseformDictionary.main
+			String baseform = bd.get(string.substring(start, i));
+			if (baseform == null) return null;
+			ret.append(baseform);
+			tokens++;
+		}
+		metrics.increment(Counter.TOKENS, tokens);
+		metrics.increment(Counter.DICTIONARY_TOKENS, tokens);
+		return ret.toString().trim();
 	}
 
 	private SentenceDetector getSentenceDetector(Locale lang) {
@@ -144,8 +219,12 @@ public class CombinedLexicalAnalysisService extends HFSTLexicalAnalysisService {
 		fitag = tmp;
 	}
 
+	private static final ReentrantLock fitagLock = new ReentrantLock();
+
 	private static final Parser fiparser = new Parser();
 
+	private static final ReentrantLock fiparserLock = new ReentrantLock();
+
 	static {
 		try {
 			DB.setDebug(false);
@@ -265,11 +344,16 @@ public class CombinedLexicalAnalysisService extends HFSTLexicalAnalysisService {
 	}
 	
 	public String baseform(String string, Locale lang, boolean baseformSegments, boolean guessUnknown, int maxEditDistance, int depth) {
+		if (!supportedLocales.contains(lang)) return super.baseform(string, lang, baseformSegments, guessUnknown, maxEditDistance).trim();
+		if (useBaseformDictionary && !baseformSegments && depth == 1) {
+			String ret = dictionaryBaseform(string, lang);
+			if (ret != null) return ret;
+		}
 		try {
-			List<WordToResults> crc = analyze(string, lang, Collections.EMPTY_LIST, baseformSegments, guessUnknown, false, maxEditDistance, depth);
+			List<WordToResults> crc = analyze(string, lang, Collections.<String>emptyList(), baseformSegments, guessUnknown, false, maxEditDistance, depth, Integer.MAX_VALUE, true, AnalysisBudget.UNLIMITED);
 			StringBuilder ret = new StringBuilder();
 			for (WordToResults cr : crc)
-				ret.append(getBestLemma(cr, lang, baseformSegments));
+				appendBestLemma(cr, baseformSegments, ret);
 			return ret.toString().trim();
 		} catch (ArrayIndexOutOfBoundsException e) {
 			return string;
@@ -279,45 +363,275 @@ public class CombinedLexicalAnalysisService extends HFSTLexicalAnalysisService {
 	private final static Pattern punctuationAtEnd = Pattern.compile("\\p{P}+$");
 	
 	public List<WordToResults> analyze(String str, Locale lang, List<String> inflections, boolean baseformSegments, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance, int depth) {
-		if (!supportedLocales.contains(lang)) return super.analyze(str, lang, inflections, baseformSegments, guessUnknown, segmentUnknown, maxErrorCorrectDistance);
-		Tokenizer t = getTokenizer(lang);
+		return analyze(str, lang, inflections, baseformSegments, guessUnknown, segmentUnknown, maxErrorCorrectDistance, depth, AnalysisBudget.UNLIMITED);
+	}
+
+	public List<WordToResults> analyze(String str, Locale lang, List<String> inflections, boolean baseformSegments, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance, int depth, AnalysisBudget budget) {
+		return analyze(str, lang, inflections, baseformSegments, guessUnknown, segmentUnknown, maxErrorCorrectDistance, depth, Integer.MAX_VALUE, false, budget);
+	}
+
+	private void enrich(List<Result> r, Locale lang, List<String> inflections, boolean baseformSegments, boolean guessUnknown, AnalysisBudget budget, List<String> skipped) {
+		long time = metrics.startTimer();
+		if (baseformSegments)
+			segment: for (Result res : r)
+				for (WordPart wp : res.getParts()) {
+					List<String> bwpSegments = getBaseformSegments(wp.getLemma(), lang, guessUnknown, 0, budget);
+					if (bwpSegments == null) {
+						skipped.add("BASEFORM_SEGMENTATION");
+						break segment;
+					}
+					if (!bwpSegments.isEmpty()) wp.getTags().put("BASEFORM_SEGMENT",bwpSegments);
+				}
+		if (baseformSegments) metrics.recordSince(Stage.BASEFORM_SEGMENTATION, time);
+		if (!inflections.isEmpty() && supportedInflectionLocales.contains(lang)) {
+			time = metrics.startTimer();
+			Transducer tic = getTransducer(lang, "inflection", inflectionTransducers);
+			for (Result res : r)
+				for (WordPart wp : res.getParts()) {
+					List<String> inflectedC = new ArrayList<String>();
+					List<String> inflectedFormC = new ArrayList<String>();
+					for (String inflection : inflections) {
+						String inflected = firstToString(tic, wp.getLemma() + " " + inflection);
+						if (!inflected.isEmpty()) {
+							inflectedC.add(inflected);
+							inflectedFormC.add(inflection);
+						}
+					}
+					if (!inflectedC.isEmpty()) {
+						wp.getTags().put("INFLECTED", inflectedC);
+						wp.getTags().put("INFLECTED_FORM", inflectedFormC);
+					}
+				}
+			metrics.recordSince(Stage.INFLECTION, time);
+		}
+	}
+
+	private static final class SentenceKey {
+		private final Locale lang;
+		private final String sentence;
+		private final List<String> inflections;
+		private final int options;
+		private final int maxErrorCorrectDistance;
+		private final int depth;
+		private final int maxReadings;
+
+		SentenceKey(Locale lang, String sentence, List<String> inflections, boolean baseformSegments, boolean guessUnknown, boolean segmentUnknown, boolean enrichBestMatchOnly, boolean tokenized, int maxErrorCorrectDistance, int depth, int maxReadings) {
+			this.lang = lang;
+			this.sentence = sentence;
+			this.inflections = new ArrayList<String>(inflections);
+			this.options = (baseformSegments ? 1 : 0) | (guessUnknown ? 2 : 0) | (segmentUnknown ? 4 : 0) | (enrichBestMatchOnly ? 8 : 0) | (tokenized ? 16 : 0);
+			this.maxErrorCorrectDistance = maxErrorCorrectDistance;
+			this.depth = depth;
+			this.maxReadings = maxReadings;
+		}
+
+		@Override
+		public int hashCode() {
+			return sentence.hashCode() + 31 * lang.hashCode() + 37 * inflections.hashCode() + 41 * options + 43 * maxErrorCorrectDistance + 47 * depth + 53 * maxReadings;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			SentenceKey o = (SentenceKey) obj;
+			return o.sentence.equals(sentence) && o.lang.equals(lang) && o.inflections.equals(inflections) && o.options == options && o.maxErrorCorrectDistance == maxErrorCorrectDistance && o.depth == depth && o.maxReadings == maxReadings;
+		}
+	}
+
+	/**
+	 * Finished analysis of a sentence, with HEAD tags relative to the start of
+	 * the sentence. length is the number of characters of the input the
+	 * sentence consumed. Never modified once cached.
+	 */
+	private static final class SentenceResults {
+		private final List<WordToResults> results;
+		private final int length;
+
+		SentenceResults(List<WordToResults> results, int length) {
+			this.results = results;
+			this.length = length;
+		}
+	}
+
+	private final BoundedCache<SentenceKey, SentenceResults> sentenceCache = new BoundedCache<SentenceKey, SentenceResults>(10000);
+
+	/**
+	 * Copies ret[from..] into a new list, shifting the HEAD tags by -offset.
+	 */
+	private static List<WordToResults> copySentence(List<WordToResults> ret, int from, int offset) {
+		List<WordToResults> copy = new ArrayList<WordToResults>(ret.size() - from);
+		for (int i = from; i < ret.size(); i++) {
+			List<Result> r = new ArrayList<Result>(ret.get(i).getAnalysis().size());
+			for (Result res : ret.get(i).getAnalysis()) {
+				Result c = new Result(res);
+				List<String> head = c.getGlobalTags().get("HEAD");
+				if (head != null) for (int h = 0; h < head.size(); h++)
+					if (!"0".equals(head.get(h))) head.set(h, String.valueOf(Integer.parseInt(head.get(h)) - offset));
+				r.add(c);
+			}
+			copy.add(new WordToResults(ret.get(i).getWord(), r));
+		}
+		return copy;
+	}
+
+	/**
+	 * Caches the analysis of the sentence in ret[from..] unless some stage of
+	 * it was skipped for the budget.
+	 */
+	private void cacheSentence(SentenceKey key, List<WordToResults> ret, int from, int length) {
+		for (int i = from; i < ret.size(); i++)
+			for (Result res : ret.get(i).getAnalysis())
+				if (res.getGlobalTags().containsKey(AnalysisBudget.DEGRADED)) return;
+		sentenceCache.put(key, new SentenceResults(copySentence(ret, from, from), length));
+	}
+
+	/**
+	 * @param maxReadings number of lowest weight readings to keep per token, Integer.MAX_VALUE for all
+	 * @param enrichBestMatchOnly compute BASEFORM_SEGMENT and INFLECTED tags only for the BEST_MATCH readings, after disambiguation
+	 */
+	public List<WordToResults> analyze(String str, Locale lang, List<String> inflections, boolean baseformSegments, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance, int depth, int maxReadings, boolean enrichBestMatchOnly, AnalysisBudget budget) {
+		if (!supportedLocales.contains(lang)) return super.analyze(str, lang, inflections, baseformSegments, guessUnknown, segmentUnknown, maxErrorCorrectDistance, maxReadings, enrichBestMatchOnly, budget);
+		return analyzeSentences(str, lang, inflections, baseformSegments, guessUnknown, segmentUnknown, maxErrorCorrectDistance, depth, maxReadings, enrichBestMatchOnly, budget, null, null);
+	}
+
+	@Override
+	public void analyze(String str, Locale lang, List<String> inflections, boolean segmentBaseform, boolean guessUnknown, boolean segmentUnknown, int maxEditDistance, int maxReadings, boolean enrichBestMatchOnly, AnalysisBudget budget, Consumer<List<WordToResults>> sentences) {
+		analyze(str, lang, inflections, segmentBaseform, guessUnknown, segmentUnknown, maxEditDistance, 2, maxReadings, enrichBestMatchOnly, budget, sentences);
+	}
+
+	/**
+	 * Streaming variant of
+	 * {@link #analyze(String, Locale, List, boolean, boolean, boolean, int, int, int, boolean, AnalysisBudget)}
+	 * that hands each sentence to the consumer as soon as it is analyzed, see
+	 * {@link HFSTLexicalAnalysisService#analyze(String, Locale, List, boolean, boolean, boolean, int, int, boolean, AnalysisBudget, Consumer)}.
+	 */
+	public void analyze(String str, Locale lang, List<String> inflections, boolean baseformSegments, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance, int depth, int maxReadings, boolean enrichBestMatchOnly, AnalysisBudget budget, Consumer<List<WordToResults>> sentences) {
+		if (!supportedLocales.contains(lang)) super.analyze(str, lang, inflections, baseformSegments, guessUnknown, segmentUnknown, maxErrorCorrectDistance, maxReadings, enrichBestMatchOnly, budget, sentences);
+		else analyzeSentences(str, lang, inflections, baseformSegments, guessUnknown, segmentUnknown, maxErrorCorrectDistance, depth, maxReadings, enrichBestMatchOnly, budget, null, Objects.requireNonNull(sentences));
+	}
+
+	@Override
+	public List<WordToResults> analyzeTokens(List<List<String>> sentences, Locale lang, List<String> inflections, boolean segmentBaseform, boolean guessUnknown, boolean segmentUnknown, int maxEditDistance, int maxReadings, boolean enrichBestMatchOnly, AnalysisBudget budget) {
+		return analyzeTokens(sentences, lang, inflections, segmentBaseform, guessUnknown, segmentUnknown, maxEditDistance, 2, maxReadings, enrichBestMatchOnly, budget);
+	}
+
+	/**
+	 * Variant of
+	 * {@link #analyze(String, Locale, List, boolean, boolean, boolean, int, int, int, boolean, AnalysisBudget)}
+	 * for text already split into sentences and tokens, which go straight to
+	 * lookup, tagging and parsing, see
+	 * {@link HFSTLexicalAnalysisService#analyzeTokens(List, Locale, List, boolean, boolean, boolean, int, int, boolean, AnalysisBudget)}.
+	 */
+	public List<WordToResults> analyzeTokens(List<List<String>> sentences, Locale lang, List<String> inflections, boolean baseformSegments, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance, int depth, int maxReadings, boolean enrichBestMatchOnly, AnalysisBudget budget) {
+		if (!supportedLocales.contains(lang)) return super.analyzeTokens(sentences, lang, inflections, baseformSegments, guessUnknown, segmentUnknown, maxErrorCorrectDistance, maxReadings, enrichBestMatchOnly, budget);
+		return analyzeSentences(null, lang, inflections, baseformSegments, guessUnknown, segmentUnknown, maxErrorCorrectDistance, depth, maxReadings, enrichBestMatchOnly, budget, sentences, null);
+	}
+
+	/**
+	 * @param tokenized if not null, the sentences and tokens to analyze in
+	 *            place of str, laid out as if separated by single spaces
+	 * @param sink if not null, receives each sentence when done, and nothing is
+	 *            returned
+	 */
+	private List<WordToResults> analyzeSentences(String str, Locale lang, List<String> inflections, boolean baseformSegments, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance, int depth, int maxReadings, boolean enrichBestMatchOnly, AnalysisBudget budget, List<List<String>> tokenized, Consumer<List<WordToResults>> sink) {
+		maxReadings = Math.max(1, Math.min(maxReadings, maxReadingsPerToken));
+		Tokenizer t = tokenized == null ? getTokenizer(lang) : null;
 		Transducer tc = getTransducer(lang, "analysis", analysisTransducers);
 		List<WordToResults> ret = new ArrayList<WordToResults>();
 		int lastIndexInOriginal = 0;
 		int curIndexInOriginal = 0;
-		for (String sentence : getSentenceDetector(lang).sentDetect(str)) {
+		long time = metrics.startTimer();
+		String[] sentences;
+		if (tokenized == null) {
+			sentences = getSentenceDetector(lang).sentDetect(str);
+			metrics.recordSince(Stage.SENTENCE_DETECTION, time);
+		} else {
+			tokenized = tokenized.stream().map(s -> s.stream().filter(w -> !w.isEmpty()).collect(Collectors.toList())).filter(s -> !s.isEmpty()).collect(Collectors.toList());
+			sentences = new String[tokenized.size()];
+			for (int i = 0; i < sentences.length; i++)
+				sentences[i] = String.join(" ", tokenized.get(i));
+			str = String.join(" ", sentences);
+		}
+		for (int i = 0; i < sentences.length; i++) {
+			String sentence = sentences[i];
 			int startOfSentenceInResults = ret.size();
 			lastIndexInOriginal = curIndexInOriginal;
-			while (!str.substring(curIndexInOriginal).startsWith(sentence)) curIndexInOriginal++;
+			curIndexInOriginal = str.indexOf(sentence, curIndexInOriginal);
+			if (curIndexInOriginal == -1) throw new StringIndexOutOfBoundsException("\"" + sentence + "\" not found in the input");
 			if (lastIndexInOriginal != curIndexInOriginal) {
 				String whitespace = str.substring(lastIndexInOriginal, curIndexInOriginal);
 				ret.add(new WordToResults(whitespace, Collections.singletonList(new Result().addGlobalTag("WHITESPACE", "TRUE").addPart(new WordPart(whitespace)))));
 			}
+			SentenceKey key = new SentenceKey(lang, sentence, inflections, baseformSegments, guessUnknown, segmentUnknown, enrichBestMatchOnly, tokenized != null, maxErrorCorrectDistance, depth, maxReadings);
+			SentenceResults cached = sentenceCache.get(key);
+			if (cached != null) {
+				metrics.increment(Counter.CACHED_SENTENCES, 1);
+				ret.addAll(copySentence(cached.results, 0, -ret.size()));
+				curIndexInOriginal += cached.length;
+				if (sink != null) {
+					sink.accept(ret);
+					ret = new ArrayList<WordToResults>();
+				}
+				continue;
+			}
+			int startOfSentenceTokens = ret.size();
+			int startOfSentenceInOriginal = curIndexInOriginal;
 			int wordInSentence = 0;
-			String[] sentenceTokens = t.tokenize(sentence);
-			if (sentenceTokens.length>0) { // check for punctuation at end of sentence, because the machine learned tokenizer sometimes makes mistakes there (any word ending with m.)
-				Matcher m = punctuationAtEnd.matcher(sentenceTokens[sentenceTokens.length-1]); 
-				if (m.find() && m.start() != 0) {
-					sentenceTokens = Arrays.copyOf(sentenceTokens, sentenceTokens.length + 1);
-					sentenceTokens[sentenceTokens.length - 1] = sentenceTokens[sentenceTokens.length - 2].substring(m.start());
-					sentenceTokens[sentenceTokens.length - 2] = sentenceTokens[sentenceTokens.length - 2].substring(0, m.start());
+			String[] sentenceTokens;
+			if (tokenized != null) sentenceTokens = tokenized.get(i).toArray(new String[0]);
+			else {
+				time = metrics.startTimer();
+				sentenceTokens = t.tokenize(sentence);
+				if (sentenceTokens.length>0) { // check for punctuation at end of sentence, because the machine learned tokenizer sometimes makes mistakes there (any word ending with m.)
+					Matcher m = punctuationAtEnd.matcher(sentenceTokens[sentenceTokens.length-1]); 
+					if (m.find() && m.start() != 0) {
+						sentenceTokens = Arrays.copyOf(sentenceTokens, sentenceTokens.length + 1);
+						sentenceTokens[sentenceTokens.length - 1] = sentenceTokens[sentenceTokens.length - 2].substring(m.start());
+						sentenceTokens[sentenceTokens.length - 2] = sentenceTokens[sentenceTokens.length - 2].substring(0, m.start());
+					}
 				}
+				metrics.recordSince(Stage.TOKENIZATION, time);
 			}
 			for (String word: sentenceTokens) {
 				lastIndexInOriginal = curIndexInOriginal;
-				while (!str.substring(curIndexInOriginal).startsWith(word)) curIndexInOriginal++;
+				curIndexInOriginal = str.indexOf(word, curIndexInOriginal);
+				if (curIndexInOriginal == -1) throw new StringIndexOutOfBoundsException("\"" + word + "\" not found in the input");
 				if (lastIndexInOriginal != curIndexInOriginal) {
 					String whitespace = str.substring(lastIndexInOriginal, curIndexInOriginal);
 					ret.add(new WordToResults(whitespace, Collections.singletonList(new Result().addGlobalTag("WHITESPACE", "TRUE").addPart(new WordPart(whitespace)))));
 				}
 				curIndexInOriginal += word.length();
-				final List<Result> r = toResult(tc.analyze(word));
+				metrics.increment(Counter.TOKENS, 1);
+				List<String> skipped = new ArrayList<String>(0);
+				TokenClass tokenClass = LexicalAnalysisUtil.classify(word);
+				final List<Result> r;
+				if (tokenClass.isLookup()) {
+					budget.spend(1);
+					time = metrics.startTimer();
+					r = toResult(analyze(tc, word, maxReadings), maxReadings);
+					metrics.recordSince(Stage.TRANSDUCER_LOOKUP, time);
+				} else r = new ArrayList<Result>(1);
 				if (wordInSentence++==0) for (Result res : r) res.addGlobalTag("FIRST_IN_SENTENCE", "TRUE");
+				if (r.isEmpty() && tokenClass != TokenClass.WORD) {
+					metrics.increment(Counter.CLASSIFIED_TOKENS, 1);
+					r.add(getTokenClassResult(word, tokenClass));
+				}
 				if (r.isEmpty()) {
 					if (maxErrorCorrectDistance>0) {
+						time = metrics.startTimer();
 						Transducer tc2 = segmentUnknown ? getTransducer(lang,"analysis-fuzzy-segment",fuzzySegmentTransducers) : getTransducer(lang,"analysis-fuzzy",fuzzyTransducers);
-						for (int j=1;j<=maxErrorCorrectDistance;j++) {
-							for (String c : getEditDistance(word,j)) {
+						fuzzy: for (int j=1;j<=maxErrorCorrectDistance;j++) {
+							if (budget.isExhausted()) {
+								skipped.add("FUZZY_CORRECTION");
+								break;
+							}
+							List<String> candidates = getEditDistance(word,j);
+							metrics.increment(Counter.FUZZY_CANDIDATES, candidates.size());
+							for (String c : candidates) {
+								if (budget.isExhausted()) {
+									skipped.add("FUZZY_CORRECTION");
+									break fuzzy;
+								}
+								budget.spend(1);
 								List<Transducer.Result> res2 = tc2.analyze(c);
 								for (Transducer.Result r2: res2)
 									if (r2.getWeight()<(j+1)*1000)
@@ -325,117 +639,34 @@ public class CombinedLexicalAnalysisService extends HFSTLexicalAnalysisService {
 							}
 							if (!r.isEmpty()) break;
 						}
+						metrics.recordSince(Stage.FUZZY_CORRECTION, time);
 					}
 					if (guessUnknown && word.length()>=4) { // Fixed cutoff, don't guess words shorter than 4 chars.
-						Transducer tc2 = segmentUnknown ? getTransducer(lang,"analysis-guess-segment",guessSegmentTransducers) : getTransducer(lang,"analysis-guess",guessTransducers);
-						String reversedLabel = StringUtils.reverse(word);
-						List<Transducer.Result> analysis = Collections.EMPTY_LIST;
-						int length = reversedLabel.length();
-						while (analysis.isEmpty() && length>3) // Fixed cutoff of min 3 last chars to use 
-							analysis = tc2.analyze(reversedLabel.substring(0,length--));
-						if (!analysis.isEmpty()) {
-							for (Transducer.Result tr: analysis) {
-								if (tr.getSymbols().isEmpty()) continue;
-								Collections.reverse(tr.getSymbols());
-								if (!tr.getSymbols().get(0).startsWith("[")) tr.getSymbols().add(0,"[WORD_ID=");
-							}
-							ObjectIntHashMap<Result> gres = new ObjectIntHashMap<Result>();
-							outer: for (Result gr : toResult(analysis)) {
-								if (gr.getParts().isEmpty()) continue;
-								boolean empty = true;
-								for (WordPart p : gr.getParts()) if (!"".equals(p.getLemma())) {
-									empty=false;
-									break;
-								}
-								if (empty) continue;
-								gr.getParts().get(0).getTags().remove("GUESS_CATEGORY");
-								gr.getParts().get(0).getTags().remove("KAV");
-								gr.getParts().get(0).getTags().remove("PROPER");
-								gr.getParts().get(0).getTags().remove("SEM");
-								List<String> pos = gr.getParts().get(0).getTags().get("UPOS");
-								if (pos!=null) for (int j=0;j<pos.size();j++)
-									if (pos.get(j).equals("PROPN")) pos.set(j,"NOUN");
-								gr.getParts().get(0).setLemma(word.substring(0,word.length()-length-1)+gr.getParts().get(0).getLemma());
-								List<String> gsegments = gr.getParts().get(0).getTags().get("SEGMENT");
-								if (gsegments!=null) {
-									List<String> nsegments = new ArrayList<String>();
-									int clindex = word.length()-1;
-									for (int j=gsegments.size()-1;j>=0;j--) {
-										String cs = gsegments.get(j);
-										if (cs.contains("{WB}")) continue outer;
-										int cindex = cs.length()-1; 
-										while (cindex>=0 && clindex>=0) {
-											if (cs.charAt(cindex)=='»') cindex--;
-											else {
-												String tmp = cs.substring(0,cindex+1);
-												if (tmp.endsWith("{WB}") || tmp.endsWith("{XB}") || tmp.endsWith("{DB}") || tmp.endsWith("{MB}")) cindex-=4;
-												else if (tmp.endsWith("{STUB}")) cindex-=6;
-												else if (tmp.endsWith("{hyph?}")) cindex-=7;
-												else if (word.charAt(clindex--)!=cs.charAt(cindex--)) break;
-											}
-										}
-										if (cindex!=-1) {
-											nsegments.add(word.substring(0,clindex+2) + cs.substring(cindex+2));
-											clindex=-1;
-											break;
-										} else nsegments.add(gsegments.get(j));
-										if (j!=0 && clindex==-1) continue outer;
-									}
-									Collections.reverse(nsegments);
-									if (clindex!=-1) nsegments.set(0,word.substring(0,clindex+1)+nsegments.get(0));
-									gr.getParts().get(0).getTags().put("SEGMENT", nsegments);
-								}
-								gres.putOrAdd(gr, 1, 1);
-							}
-							gres.forEach(new ObjectIntProcedure<Result>() {
-								public void apply(Result value, int v2) { value.setWeight(value.getWeight()/v2);value.addGlobalTag("GUESS_COUNT",""+v2); r.add(value); };
-							});
-						}
+						time = metrics.startTimer();
+						int sizeBeforeGuessing = r.size();
+						guess(word, r, lang, segmentUnknown, budget, skipped);
+						if (r.size() > sizeBeforeGuessing) metrics.increment(Counter.GUESSED_TOKENS, 1);
+						metrics.recordSince(Stage.GUESSING, time);
 					}
 				}
-				if (r.isEmpty())
+				if (r.isEmpty()) {
+					metrics.increment(Counter.UNKNOWN_TOKENS, 1);
 					r.add(new Result().addGlobalTag("UNKNOWN", "TRUE").addPart(new WordPart(word)));
-				if (baseformSegments)
-					for (Result res : r)
-						for (WordPart wp : res.getParts()) {
-							List<WordToResults> analysis = super.analyze(wp.getLemma(), lang, Collections.EMPTY_LIST, false, guessUnknown, true,0);
-							if (analysis.size()==0)
-								continue;
-							Result br = getBestResult(analysis.get(0));
-							List<String> bwpSegments = new ArrayList<String>();
-							for (WordPart bwp : br.getParts()) {
-								if (bwp.getTags().containsKey("SEGMENT"))
-									bwpSegments.addAll(bwp.getTags().get("SEGMENT"));
-								else bwpSegments.add(bwp.getLemma());
-								bwpSegments.add("{WB}");
-							}
-							bwpSegments.remove(bwpSegments.size()-1);
-							wp.getTags().put("BASEFORM_SEGMENT",bwpSegments);
-						}				
-				if (!inflections.isEmpty() && supportedInflectionLocales.contains(lang)) {
-					Transducer tic = getTransducer(lang, "inflection", inflectionTransducers);
-					for (Result res : r)
-						for (WordPart wp : res.getParts()) {
-							List<String> inflectedC = new ArrayList<String>();
-							List<String> inflectedFormC = new ArrayList<String>();
-							for (String inflection : inflections) {
-								String inflected = firstToString(tic.analyze(wp.getLemma() + " " + inflection));
-								if (!inflected.isEmpty()) {
-									inflectedC.add(inflected);
-									inflectedFormC.add(inflection);
-								}
-							}
-							if (!inflectedC.isEmpty()) {
-								wp.getTags().put("INFLECTED", inflectedC);
-								wp.getTags().put("INFLECTED_FORM", inflectedFormC);
-							}
-						}
 				}
+				keepLowestWeight(r, maxReadings);
+				if (!enrichBestMatchOnly) enrich(r, lang, inflections, baseformSegments, guessUnknown, budget, skipped);
+				addDegradedTag(r, skipped);
 				ret.add(new WordToResults(word, r));
 			}
 			List<Word> tokens = null;
 			List<List<String>> tags = null;
-			if (fi.equals(lang) && ret.size() - startOfSentenceInResults <= 120 && depth > 0) { // NOTE!: hard cutoff for sentence length
+			boolean tag = fi.equals(lang) && ret.size() - startOfSentenceInResults <= 120 && depth > 0; // NOTE!: hard cutoff for sentence length
+			if (tag && budget.isExhausted()) {
+				addDegradedTag(ret, startOfSentenceInResults, "TAGGING");
+				if (depth > 1) addDegradedTag(ret, startOfSentenceInResults, "PARSING");
+				tag = false;
+			}
+			if (tag) {
 				tokens = new ArrayList<Word>(ret.size() - startOfSentenceInResults);
 				int j = startOfSentenceInResults;
 				while (j < ret.size()) {
@@ -453,8 +684,15 @@ public class CombinedLexicalAnalysisService extends HFSTLexicalAnalysisService {
 					Arrays.sort(termFeatures);
 					tokens.add(new Word(wtr.getWord(), null, null, termFeatures, null, null));
 				}
-				synchronized (fitag) {
+				time = metrics.startTimer();
+				fitagLock.lock();
+				try {
+					metrics.recordSince(Stage.TAGGER_LOCK_WAIT, time);
+					long locked = metrics.startTimer();
 					tags = fitag.tag(new Sentence(tokens));
+					metrics.recordSince(Stage.TAGGING, locked);
+				} finally {
+					fitagLock.unlock();
 				}
 				j = startOfSentenceInResults;
 				for (int k = 0; k < tags.size(); k++) {
@@ -481,6 +719,7 @@ public class CombinedLexicalAnalysisService extends HFSTLexicalAnalysisService {
 					}
 				}
 			}
+			time = metrics.startTimer();
 			int j = startOfSentenceInResults;
 			while (j < ret.size()) {
 				WordToResults wtr = ret.get(j++);
@@ -591,8 +830,22 @@ public class CombinedLexicalAnalysisService extends HFSTLexicalAnalysisService {
 				for (Result res : bestResult)
 					res.addGlobalTag("BEST_MATCH", "TRUE");
 				Collections.sort(wtr.getAnalysis(), resultComparator);
-			}			
-			if (fi.equals(lang) && ret.size() - startOfSentenceInResults <= 120 && depth > 1) { // NOTE!: hard cutoff for sentence length
+			}
+			metrics.recordSince(Stage.DISAMBIGUATION, time);
+			if (enrichBestMatchOnly && (baseformSegments || !inflections.isEmpty()))
+				for (j = startOfSentenceInResults; j < ret.size(); j++) {
+					List<Result> r = ret.get(j).getAnalysis();
+					if (r.get(0).getGlobalTags().containsKey("WHITESPACE")) continue;
+					List<String> skipped = new ArrayList<String>(0);
+					enrich(getBestMatches(r), lang, inflections, baseformSegments, guessUnknown, budget, skipped);
+					addDegradedTag(r, skipped);
+				}
+			boolean parse = tokens != null && depth > 1;
+			if (parse && budget.isExhausted()) {
+				addDegradedTag(ret, startOfSentenceInResults, "PARSING");
+				parse = false;
+			}
+			if (parse) {
 				j = startOfSentenceInResults;
 				SentenceData09 sd = new SentenceData09();
 				String[] forms = new String[tokens.size() + 1];
@@ -635,8 +888,15 @@ public class CombinedLexicalAnalysisService extends HFSTLexicalAnalysisService {
 				sd.setPPos(poss);
 				sd.setFeats(feats);
 				SentenceData09 out;
-				synchronized (fiparser) {
+				time = metrics.startTimer();
+				fiparserLock.lock();
+				try {
+					metrics.recordSince(Stage.PARSER_LOCK_WAIT, time);
+					long locked = metrics.startTimer();
 					out = fiparser.parse(sd, fiparser.params, false, fiparser.options);
+					metrics.recordSince(Stage.PARSING, locked);
+				} finally {
+					fiparserLock.unlock();
 				}
 				j = startOfSentenceInResults;
 			    int wp = 0;
@@ -665,10 +925,15 @@ public class CombinedLexicalAnalysisService extends HFSTLexicalAnalysisService {
 						}
 				}
 			}
+			cacheSentence(key, ret, startOfSentenceTokens, curIndexInOriginal - startOfSentenceInOriginal);
+			if (sink != null) {
+				sink.accept(ret);
+				ret = new ArrayList<WordToResults>();
+			}
 		}
-		return ret;
+		return sink == null ? ret : null;
 	}
-	
+
 	public static final Comparator<Result> resultComparator = new Comparator<Result>() {
 
 		@Override
@@ -685,14 +950,37 @@ public class CombinedLexicalAnalysisService extends HFSTLexicalAnalysisService {
 	};
 
 	@Override
-	public List<WordToResults> analyze(String str, Locale lang, List<String> inflections, boolean segmentBaseform, boolean guessUnknown, boolean segmentUnknown, int maxEditDistance) {
-		return analyze(str, lang, inflections, segmentBaseform, guessUnknown, segmentUnknown, maxEditDistance, 2);
+	public List<WordToResults> analyze(String str, Locale lang, List<String> inflections, boolean segmentBaseform, boolean guessUnknown, boolean segmentUnknown, int maxEditDistance, int maxReadings, boolean enrichBestMatchOnly, AnalysisBudget budget) {
+		return analyze(str, lang, inflections, segmentBaseform, guessUnknown, segmentUnknown, maxEditDistance, 2, maxReadings, enrichBestMatchOnly, budget);
+	}
+
+	@Override
+	public List<List<WordToResults>> analyzeBatch(List<String> documents, Locale lang, List<String> inflections, boolean segmentBaseform, boolean guessUnknown, boolean segmentUnknown, int maxEditDistance, int maxReadings, boolean enrichBestMatchOnly) {
+		return analyzeBatch(documents, lang, inflections, segmentBaseform, guessUnknown, segmentUnknown, maxEditDistance, 2, maxReadings, enrichBestMatchOnly);
+	}
+
+	/**
+	 * Analyzes a batch of documents in parallel. Tagging, parsing and the
+	 * disambiguation that follows depend on the whole sentence, so unlike in
+	 * the plain transducer service the documents are analyzed one by one
+	 * instead of vocabulary first. Repeated sentences still hit the sentence
+	 * cache.
+	 */
+	public List<List<WordToResults>> analyzeBatch(List<String> documents, Locale lang, List<String> inflections, boolean segmentBaseform, boolean guessUnknown, boolean segmentUnknown, int maxEditDistance, int depth, int maxReadings, boolean enrichBestMatchOnly) {
+		if (!supportedLocales.contains(lang)) return super.analyzeBatch(documents, lang, inflections, segmentBaseform, guessUnknown, segmentUnknown, maxEditDistance, maxReadings, enrichBestMatchOnly);
+		return documents.parallelStream().map(document -> analyze(document, lang, inflections, segmentBaseform, guessUnknown, segmentUnknown, maxEditDistance, depth, maxReadings, enrichBestMatchOnly, AnalysisBudget.UNLIMITED)).collect(Collectors.toList());
+	}
+
+	@Override
+	public List<String> baseformBatch(List<String> documents, Locale lang, boolean segments, boolean guessUnknown, int maxEditDistance) {
+		if (!supportedLocales.contains(lang)) return super.baseformBatch(documents, lang, segments, guessUnknown, maxEditDistance).stream().map(String::trim).collect(Collectors.toList());
+		return documents.parallelStream().map(document -> baseform(document, lang, segments, guessUnknown, maxEditDistance)).collect(Collectors.toList());
 	}
 
 	@Override
 	public String inflect(String string, List<String> inflections, boolean segments, boolean baseform, boolean guessUnknown, int maxEditDistance, Locale lang) {
 		StringBuilder ret = new StringBuilder();
-		for (WordToResults part : analyze(string, lang, inflections, false, guessUnknown, false, maxEditDistance, 0)) {
+		for (WordToResults part : analyze(string, lang, inflections, false, guessUnknown, false, maxEditDistance, 0, Integer.MAX_VALUE, true, AnalysisBudget.UNLIMITED)) {
 			String inflected = getBestInflection(part, lang, segments, baseform);
 			if (!inflected.isEmpty())
 				ret.append(inflected);
@@ -708,14 +996,9 @@ public class CombinedLexicalAnalysisService extends HFSTLexicalAnalysisService {
 		int recognized = 0;
 		int unrecognized = 0;
 		for (String sentence : getSentenceDetector(lang).sentDetect(str))
-			outer: for (String label : t.tokenize(sentence)) {
-				for (Transducer.Result tr : tc.analyze(label))
-					if (!tr.getSymbols().isEmpty()) {
-						recognized++;
-						continue outer;
-					}
-				unrecognized++;
-			}
+			for (String label : t.tokenize(sentence))
+				if (accepts(tc, label)) recognized++;
+				else unrecognized++;
 		return new RecognitionResult(recognized,unrecognized);
 	}
 	
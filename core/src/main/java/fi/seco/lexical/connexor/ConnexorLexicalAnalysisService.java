@@ -1,6 +1,7 @@
 package fi.seco.lexical.connexor;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
@@ -12,7 +13,10 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -23,8 +27,8 @@ import com.carrotsearch.hppc.IntObjectHashMap;
 import com.carrotsearch.hppc.IntObjectMap;
 import com.carrotsearch.hppc.ObjectIntHashMap;
 import com.carrotsearch.hppc.ObjectIntMap;
-import com.dyuproject.protostuff.LinkedBuffer;
-import com.dyuproject.protostuff.ProtostuffIOUtil;
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+import com.dyuproject.protostuff.Schema;
 
 import fi.seco.lexical.ALexicalAnalysisService;
 import fi.seco.lexical.LexicalAnalysisUtil;
@@ -33,7 +37,7 @@ import fi.seco.lexical.connexor.model.LANGResponse;
 import fi.seco.lexical.connexor.model.MMDResponse;
 import fi.seco.lexical.connexor.model.MPTResponse;
 
-public class ConnexorLexicalAnalysisService extends ALexicalAnalysisService {
+public class ConnexorLexicalAnalysisService extends ALexicalAnalysisService implements Closeable {
 
 	private static final Logger log = LoggerFactory.getLogger(ConnexorLexicalAnalysisService.class);
 
@@ -80,6 +84,8 @@ public class ConnexorLexicalAnalysisService extends ALexicalAnalysisService {
 		services.put(new Key(Service.MSUM, new Locale("en")), 52012);
 	}
 	private final IntObjectMap<ConcurrentLinkedQueue<Socket>> sockets = new IntObjectHashMap<ConcurrentLinkedQueue<Socket>>();
+	private final IntObjectMap<PipelinedConnexorClient> clients = new IntObjectHashMap<PipelinedConnexorClient>();
+	private final ReentrantLock connectionLock = new ReentrantLock();
 
 	private final static Pattern p = Pattern.compile("<lemma>(.*)</lemma>");
 
@@ -107,13 +113,16 @@ public class ConnexorLexicalAnalysisService extends ALexicalAnalysisService {
 	}
 
 	private Socket ensureSocket(int port) throws IOException {
-		ConcurrentLinkedQueue<Socket> clqs = sockets.get(port);
-		if (clqs == null) synchronized (sockets) {
+		ConcurrentLinkedQueue<Socket> clqs;
+		connectionLock.lock();
+		try {
 			clqs = sockets.get(port);
 			if (clqs == null) {
 				clqs = new ConcurrentLinkedQueue<Socket>();
 				sockets.put(port, clqs);
 			}
+		} finally {
+			connectionLock.unlock();
 		}
 		Socket s = clqs.poll();
 		s = null;
@@ -135,7 +144,14 @@ public class ConnexorLexicalAnalysisService extends ALexicalAnalysisService {
 	}
 
 	private void releaseSocket(int port, Socket s) {
-		sockets.get(port).offer(s);
+		ConcurrentLinkedQueue<Socket> clqs;
+		connectionLock.lock();
+		try {
+			clqs = sockets.get(port);
+		} finally {
+			connectionLock.unlock();
+		}
+		clqs.offer(s);
 	}
 
 	private String run(Service s, String str, Locale lang, String encoding, boolean mmdBug) {
@@ -156,50 +172,73 @@ public class ConnexorLexicalAnalysisService extends ALexicalAnalysisService {
 	}
 
 	public MPTResponse analyzeMPT(String str, Locale lang) {
-		Socket socket;
+		return join(analyzeMPTAsync(str, lang), MPTPort);
+	}
+
+	private <T> T join(CompletableFuture<T> f, int port) {
+		try {
+			return f.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new RuntimeException("Couldn't transmit to/from " + host + ":" + port, e.getCause());
+		}
+	}
+
+	private <T> CompletableFuture<T> submit(int port, ConnexorRequest rq, T response, Schema<T> schema) {
+		PipelinedConnexorClient c;
+		connectionLock.lock();
 		try {
-			socket = ensureSocket(MPTPort);
+			c = clients.get(port);
+			if (c == null || !c.isOpen()) {
+				c = new PipelinedConnexorClient(host, port);
+				clients.put(port, c);
+			}
 		} catch (IOException e) {
-			throw new RuntimeException("Couldn't connect to " + host + ":" + MPTPort, e);
+			CompletableFuture<T> f = new CompletableFuture<T>();
+			f.completeExceptionally(new RuntimeException("Couldn't connect to " + host + ":" + port, e));
+			return f;
+		} finally {
+			connectionLock.unlock();
 		}
+		return c.submit(rq, response, schema);
+	}
+
+	/**
+	 * Pipelined version of {@link #analyzeMPT(String, Locale)}. Multiple
+	 * requests share one connection without waiting for each other's round
+	 * trip.
+	 */
+	public CompletableFuture<MPTResponse> analyzeMPTAsync(String str, Locale lang) {
 		ConnexorRequest rq = new ConnexorRequest();
 		rq.setType(ConnexorRequest.Type.MPT);
 		rq.setText(str);
 		rq.setLocale(lang.toString());
-		try {
-			ProtostuffIOUtil.writeDelimitedTo(socket.getOutputStream(), rq, ConnexorRequest.getSchema(), LinkedBuffer.allocate(1024));
-			MPTResponse lr = new MPTResponse();
-			ProtostuffIOUtil.mergeDelimitedFrom(socket.getInputStream(), lr, MPTResponse.getSchema());
+		return submit(MPTPort, rq, new MPTResponse(), MPTResponse.getSchema()).thenApply(lr -> {
 			if (lr.getError() != null) throw new RuntimeException(lr.getError());
 			return lr;
-		} catch (IOException e) {
-			throw new RuntimeException("Couldn't transmit to/from " + host + ":" + MPTPort, e);
-		} finally {
-			releaseSocket(MPTPort, socket);
-		}
+		});
 	}
 
-	public Locale guessLanguage(String str) {
-		Socket socket;
-		try {
-			socket = ensureSocket(MPTPort);
-		} catch (IOException e) {
-			throw new RuntimeException("Couldn't connect to " + host + ":" + MPTPort, e);
-		}
+	public CompletableFuture<MMDResponse> analyzeMMDAsync(String str, Locale lang) {
+		ConnexorRequest rq = new ConnexorRequest();
+		rq.setType(ConnexorRequest.Type.MMD);
+		rq.setText(str);
+		rq.setLocale(lang.toString());
+		return submit(MMDPort, rq, new MMDResponse(), MMDResponse.getSchema()).thenApply(lr -> {
+			if (lr.getError() != null) throw new RuntimeException(lr.getError());
+			return lr;
+		});
+	}
+
+	public CompletableFuture<Locale> guessLanguageAsync(String str) {
 		ConnexorRequest rq = new ConnexorRequest();
 		rq.setType(ConnexorRequest.Type.LANG);
 		rq.setText(str);
-		try {
-			ProtostuffIOUtil.writeDelimitedTo(socket.getOutputStream(), rq, ConnexorRequest.getSchema(), LinkedBuffer.allocate(1024));
-			LANGResponse lr = new LANGResponse();
-			ProtostuffIOUtil.mergeDelimitedFrom(socket.getInputStream(), lr, LANGResponse.getSchema());
-			return new Locale(lr.getLang());
-		} catch (IOException e) {
-			throw new RuntimeException("Couldn't transmit to/from " + host + ":" + MPTPort, e);
-		} finally {
-			releaseSocket(MPTPort, socket);
-		}
+		return submit(MPTPort, rq, new LANGResponse(), LANGResponse.getSchema()).thenApply(lr -> new Locale(lr.getLang()));
+	}
 
+	public Locale guessLanguage(String str) {
+		return join(guessLanguageAsync(str), MPTPort);
 	}
 
 	public String analyzeFDG(String str, Locale lang) {
@@ -208,28 +247,7 @@ public class ConnexorLexicalAnalysisService extends ALexicalAnalysisService {
 	}
 
 	public MMDResponse analyzeMMD(String str, Locale lang) {
-		Socket socket;
-		try {
-			socket = ensureSocket(MMDPort);
-		} catch (IOException e) {
-			throw new RuntimeException("Couldn't connect to " + host + ":" + MMDPort, e);
-		}
-		ConnexorRequest rq = new ConnexorRequest();
-		rq.setType(ConnexorRequest.Type.MMD);
-		rq.setText(str);
-		rq.setLocale(lang.toString());
-		try {
-			ProtostuffIOUtil.writeDelimitedTo(socket.getOutputStream(), rq, ConnexorRequest.getSchema(), LinkedBuffer.allocate(1024));
-			MMDResponse lr = new MMDResponse();
-			ProtostuffIOUtil.mergeDelimitedFrom(socket.getInputStream(), lr, MMDResponse.getSchema());
-			if (lr.getError() != null) throw new RuntimeException(lr.getError());
-			return lr;
-		} catch (IOException e) {
-			throw new RuntimeException("Couldn't transmit to/from " + host + ":" + MMDPort, e);
-		} finally {
-			releaseSocket(MMDPort, socket);
-		}
-
+		return join(analyzeMMDAsync(str, lang), MMDPort);
 	}
 
 	private String run(String str, Socket fdg, String encoding) {
@@ -333,4 +351,27 @@ public class ConnexorLexicalAnalysisService extends ALexicalAnalysisService {
 		this("nipo.seco.hut.fi");
 	}
 
+	/**
+	 * Closes the pipelined connections and the pooled sockets. Requests still
+	 * pending on them fail.
+	 */
+	@Override
+	public void close() {
+		connectionLock.lock();
+		try {
+			for (ObjectCursor<PipelinedConnexorClient> c : clients.values())
+				c.value.close();
+			clients.clear();
+			for (ObjectCursor<ConcurrentLinkedQueue<Socket>> c : sockets.values()) {
+				Socket s;
+				while ((s = c.value.poll()) != null)
+					try {
+						s.close();
+					} catch (IOException e) {}
+			}
+		} finally {
+			connectionLock.unlock();
+		}
+	}
+
 }
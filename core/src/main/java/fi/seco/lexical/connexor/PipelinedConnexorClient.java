@@ -0,0 +1,199 @@
+package fi.seco.lexical.connexor;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.dyuproject.protostuff.LinkedBuffer;
+import com.dyuproject.protostuff.ProtostuffIOUtil;
+import com.dyuproject.protostuff.Schema;
+
+import fi.seco.lexical.connexor.model.ConnexorRequest;
+
+/**
+ * Client for the protostuff based Connexor services that pipelines requests
+ * over a single connection. Requests are written as soon as they are
+ * submitted, and a reader thread matches the delimited responses to the
+ * requests in the order they were sent.
+ *
+ * The futures are completed on the reader thread, so dependent stages added
+ * with the non-async methods of {@link CompletableFuture} also run there and
+ * hold up all other responses until they return. Use the async variants for
+ * anything slow or blocking. A request not answered within the timeout fails
+ * the connection, and with it all requests still pending on it.
+ */
+public class PipelinedConnexorClient implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(PipelinedConnexorClient.class);
+
+	public static final int DEFAULT_TIMEOUT = 60000;
+
+	private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+		Thread t = new Thread(r, "connexor-timeout");
+		t.setDaemon(true);
+		return t;
+	});
+
+	static {
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	private static final class Pending<T> {
+		final T message;
+		final Schema<T> schema;
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		Pending(T message, Schema<T> schema) {
+			this.message = message;
+			this.schema = schema;
+		}
+
+		void read(InputStream in, LinkedBuffer buffer) throws IOException {
+			ProtostuffIOUtil.mergeDelimitedFrom(in, message, schema, buffer);
+			future.complete(message);
+		}
+	}
+
+	private static final class ReusableOutputStream extends ByteArrayOutputStream {
+		ReusableOutputStream(int size) {
+			super(size);
+		}
+
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+
+	private final String address;
+	private final SocketChannel channel;
+	private final InputStream in;
+	private final ConcurrentLinkedQueue<Pending<?>> pending = new ConcurrentLinkedQueue<Pending<?>>();
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final LinkedBuffer writeBuffer = LinkedBuffer.allocate(1024);
+	private final ReusableOutputStream out = new ReusableOutputStream(1024);
+	private final int timeout;
+	private volatile IOException failure;
+
+	public PipelinedConnexorClient(String host, int port) throws IOException {
+		this(host, port, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * @param timeout milliseconds to wait for the response to each request,
+	 *            0 to wait forever
+	 */
+	public PipelinedConnexorClient(String host, int port, int timeout) throws IOException {
+		this.address = host + ":" + port;
+		this.timeout = timeout;
+		this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+		channel.socket().setTcpNoDelay(true);
+		this.in = new BufferedInputStream(Channels.newInputStream(channel), 8192);
+		Thread reader = new Thread(this::readResponses, "connexor-reader-" + address);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private void readResponses() {
+		LinkedBuffer readBuffer = LinkedBuffer.allocate(1024);
+		try {
+			while (failure == null) {
+				Pending<?> p = pending.peek();
+				if (p == null) {
+					in.mark(1);
+					if (in.read() == -1) throw new IOException("Connection closed by " + address);
+					in.reset();
+					if (pending.isEmpty()) throw new IOException("Unexpected data from " + address);
+					continue;
+				}
+				readBuffer.clear();
+				p.read(in, readBuffer);
+				pending.poll();
+			}
+		} catch (IOException e) {
+			fail(e);
+		} catch (RuntimeException e) {
+			fail(new IOException("Couldn't read a response from " + address, e));
+		}
+	}
+
+	private void fail(IOException e) {
+		writeLock.lock();
+		try {
+			if (failure == null) failure = e;
+		} finally {
+			writeLock.unlock();
+		}
+		Pending<?> p;
+		while ((p = pending.poll()) != null)
+			p.future.completeExceptionally(failure);
+		try {
+			channel.close();
+		} catch (IOException e2) {}
+	}
+
+	/**
+	 * Sends a request without waiting for earlier responses to arrive.
+	 *
+	 * @param rq the request
+	 * @param response an empty response message to merge the response into
+	 * @param schema schema of the response
+	 * @return future completed with the response once it has been read
+	 */
+	public <T> CompletableFuture<T> submit(ConnexorRequest rq, T response, Schema<T> schema) {
+		Pending<T> p = new Pending<T>(response, schema);
+		IOException error = null;
+		writeLock.lock();
+		try {
+			if (failure != null) p.future.completeExceptionally(failure);
+			else {
+				out.reset();
+				writeBuffer.clear();
+				ProtostuffIOUtil.writeDelimitedTo(out, rq, ConnexorRequest.getSchema(), writeBuffer);
+				pending.add(p);
+				ByteBuffer bb = out.toByteBuffer();
+				while (bb.hasRemaining())
+					channel.write(bb);
+			}
+		} catch (IOException e) {
+			log.warn("Couldn't transmit to " + address + ", " + e.getMessage());
+			error = e;
+		} finally {
+			writeLock.unlock();
+		}
+		if (error != null) {
+			fail(error);
+			p.future.completeExceptionally(error);
+		} else if (timeout > 0 && !p.future.isDone()) {
+			ScheduledFuture<?> t = timer.schedule(() -> {
+				if (!p.future.isDone()) fail(new IOException("No response from " + address + " in " + timeout + " ms"));
+			}, timeout, TimeUnit.MILLISECONDS);
+			p.future.whenComplete((r, e) -> t.cancel(false));
+		}
+		return p.future;
+	}
+
+	public boolean isOpen() {
+		return failure == null && channel.isOpen();
+	}
+
+	@Override
+	public void close() {
+		fail(new IOException("Client for " + address + " closed"));
+	}
+
+}
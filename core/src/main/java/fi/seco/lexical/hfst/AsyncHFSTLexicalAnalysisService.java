@@ -0,0 +1,34 @@
+package fi.seco.lexical.hfst;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+import fi.seco.lexical.AnalysisBudget;
+import fi.seco.lexical.AsyncLexicalAnalysisService;
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.RecognitionResult;
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.WordToResults;
+
+public class AsyncHFSTLexicalAnalysisService<S extends HFSTLexicalAnalysisService> extends AsyncLexicalAnalysisService<S> {
+
+	public AsyncHFSTLexicalAnalysisService(S service, int threads, int queueSize) {
+		super(service, threads, queueSize);
+	}
+
+	public AsyncHFSTLexicalAnalysisService(S service) {
+		super(service);
+	}
+
+	public CompletableFuture<List<WordToResults>> analyzeAsync(String str, Locale lang, List<String> inflections, boolean segmentBaseform, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance) {
+		return call(s -> s.analyze(str, lang, inflections, segmentBaseform, guessUnknown, segmentUnknown, maxErrorCorrectDistance));
+	}
+
+	public CompletableFuture<List<WordToResults>> analyzeAsync(String str, Locale lang, List<String> inflections, boolean segmentBaseform, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance, AnalysisBudget budget) {
+		return call(s -> s.analyze(str, lang, inflections, segmentBaseform, guessUnknown, segmentUnknown, maxErrorCorrectDistance, budget));
+	}
+
+	public CompletableFuture<RecognitionResult> recognizeAsync(String str, Locale lang) {
+		return call(s -> s.recognize(str, lang));
+	}
+
+}
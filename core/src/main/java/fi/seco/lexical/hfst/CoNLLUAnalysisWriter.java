@@ -0,0 +1,177 @@
+package fi.seco.lexical.hfst;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.Result;
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.Result.WordPart;
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.WordToResults;
+
+/**
+ * Writes analyses as CoNLL-U, one sentence at a time, straight to the
+ * underlying writer. Each token is written with its best reading: the lemma
+ * of its parts, the UPOS and other tags of its last part as UPOS and FEATS,
+ * and HEAD and DEPREL if it was parsed. Use as the consumer of the streaming
+ * analyze, which hands over one sentence at a time with HEAD tags counting
+ * from its start.
+ */
+public class CoNLLUAnalysisWriter implements Consumer<List<WordToResults>>, Closeable, Flushable {
+
+	private static final Set<String> NON_FEATURES = new HashSet<String>(Arrays.asList("UPOS", "BASEFORM_SEGMENT", "BASEFORM_FREQUENCY", "INFLECTED", "INFLECTED_FORM"));
+
+	private final Writer out;
+	private int sentences;
+
+	public CoNLLUAnalysisWriter(Writer out) {
+		this.out = out;
+	}
+
+	public CoNLLUAnalysisWriter(OutputStream out) {
+		this(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+	}
+
+	private static boolean isWhitespace(WordToResults wtr) {
+		return wtr.getAnalysis().get(0).getGlobalTags().containsKey("WHITESPACE");
+	}
+
+	private static Result getBest(WordToResults wtr) {
+		for (Result r : wtr.getAnalysis())
+			if (r.getGlobalTags().containsKey("BEST_MATCH")) return r;
+		return wtr.getAnalysis().get(0);
+	}
+
+	/**
+	 * Writes the string with tabs and line breaks as spaces, or _ if empty.
+	 */
+	private void writeField(CharSequence s) throws IOException {
+		if (s == null || s.length() == 0) {
+			out.write('_');
+			return;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			out.write(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+		}
+	}
+
+	private static String first(Map<String, List<String>> tags, String key) {
+		List<String> values = tags.get(key);
+		return values == null || values.isEmpty() ? null : values.get(0);
+	}
+
+	private void writeFeatures(Map<String, List<String>> tags) throws IOException {
+		List<String> keys = new ArrayList<String>(tags.keySet());
+		keys.removeAll(NON_FEATURES);
+		if (keys.isEmpty()) {
+			out.write('_');
+			return;
+		}
+		keys.sort(String.CASE_INSENSITIVE_ORDER);
+		for (int i = 0; i < keys.size(); i++) {
+			if (i > 0) out.write('|');
+			writeField(keys.get(i));
+			out.write('=');
+			List<String> values = tags.get(keys.get(i));
+			for (int j = 0; j < values.size(); j++) {
+				if (j > 0) out.write(',');
+				writeField(values.get(j));
+			}
+		}
+	}
+
+	/**
+	 * Writes a sentence, possibly preceded by whitespace. HEAD tags point to
+	 * entries of the list, counting from 1.
+	 */
+	public void writeSentence(List<WordToResults> sentence) throws IOException {
+		int[] ids = new int[sentence.size()];
+		int tokens = 0;
+		for (int i = 0; i < sentence.size(); i++)
+			if (!isWhitespace(sentence.get(i))) ids[i] = ++tokens;
+		if (tokens == 0) return;
+		out.write("# sent_id = ");
+		out.write(String.valueOf(++sentences));
+		out.write("\n# text = ");
+		int from = 0;
+		while (ids[from] == 0)
+			from++;
+		int to = sentence.size() - 1;
+		while (ids[to] == 0)
+			to--;
+		for (int i = from; i <= to; i++)
+			writeField(sentence.get(i).getWord());
+		out.write('\n');
+		for (int i = 0; i < sentence.size(); i++) {
+			if (ids[i] == 0) continue;
+			WordToResults wtr = sentence.get(i);
+			Result r = getBest(wtr);
+			List<WordPart> parts = r.getParts();
+			Map<String, List<String>> tags = parts.isEmpty() ? r.getGlobalTags() : parts.get(parts.size() - 1).getTags();
+			out.write(String.valueOf(ids[i]));
+			out.write('\t');
+			writeField(wtr.getWord());
+			out.write('\t');
+			boolean lemma = false;
+			for (WordPart wp : parts)
+				if (wp.getLemma() != null && !wp.getLemma().isEmpty()) {
+					writeField(wp.getLemma());
+					lemma = true;
+				}
+			if (!lemma) out.write('_');
+			out.write('\t');
+			writeField(first(tags, "UPOS"));
+			out.write("\t_\t");
+			writeFeatures(tags);
+			out.write('\t');
+			String head = first(r.getGlobalTags(), "HEAD");
+			if (head == null) out.write('_');
+			else {
+				int h = Integer.parseInt(head);
+				if (h == 0) out.write('0');
+				else if (h > 0 && h <= sentence.size() && ids[h - 1] != 0) out.write(String.valueOf(ids[h - 1]));
+				else out.write('_');
+			}
+			out.write('\t');
+			writeField(first(r.getGlobalTags(), "DEPREL"));
+			out.write("\t_\t");
+			if (i + 1 < sentence.size() && ids[i + 1] != 0) out.write("SpaceAfter=No");
+			else out.write('_');
+			out.write('\n');
+		}
+		out.write('\n');
+	}
+
+	@Override
+	public void accept(List<WordToResults> sentence) {
+		try {
+			writeSentence(sentence);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+}
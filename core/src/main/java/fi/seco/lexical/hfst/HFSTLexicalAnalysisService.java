@@ -1,12 +1,21 @@
 package fi.seco.lexical.hfst;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -19,9 +28,16 @@ import com.carrotsearch.hppc.procedures.ObjectIntProcedure;
 import fi.seco.hfst.Transducer;
 import fi.seco.hfst.TransducerAlphabet;
 import fi.seco.hfst.TransducerHeader;
-import fi.seco.hfst.UnweightedTransducer;
-import fi.seco.hfst.WeightedTransducer;
 import fi.seco.lexical.ALexicalAnalysisService;
+import fi.seco.lexical.AnalysisBudget;
+import fi.seco.lexical.BoundedCache;
+import fi.seco.lexical.IAnalysisMetrics;
+import fi.seco.lexical.IAnalysisMetrics.Counter;
+import fi.seco.lexical.IAnalysisMetrics.Stage;
+import fi.seco.lexical.LexicalAnalysisUtil;
+import fi.seco.lexical.LexicalAnalysisUtil.TokenClass;
+import fi.seco.lexical.PersistentCache;
+import fi.seco.lexical.TextSpans;
 import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.Result;
 import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.WordToResults;
 import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.Result.WordPart;
@@ -30,14 +46,14 @@ import marmot.util.StringUtils;
 public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 	private static final Logger log = LoggerFactory.getLogger(HFSTLexicalAnalysisService.class);
 
-	protected final static Map<Locale, Transducer> analysisTransducers = new HashMap<Locale, Transducer>();
-	protected final static Map<Locale, char[]> alphabets = new HashMap<>();
-	private final static Map<Locale, Transducer> hyphenationTransducers = new HashMap<Locale, Transducer>();
-	protected final static Map<Locale, Transducer> inflectionTransducers = new HashMap<Locale, Transducer>();
-	protected final static Map<Locale, Transducer> guessTransducers = new HashMap<Locale, Transducer>();
-	protected final static Map<Locale, Transducer> guessSegmentTransducers = new HashMap<Locale, Transducer>();
-	protected final static Map<Locale, Transducer> fuzzyTransducers = new HashMap<Locale, Transducer>();
-	protected final static Map<Locale, Transducer> fuzzySegmentTransducers = new HashMap<Locale, Transducer>();
+	protected final static Map<Locale, Transducer> analysisTransducers = new ConcurrentHashMap<Locale, Transducer>();
+	protected final static Map<Locale, char[]> alphabets = new ConcurrentHashMap<>();
+	private final static Map<Locale, Transducer> hyphenationTransducers = new ConcurrentHashMap<Locale, Transducer>();
+	protected final static Map<Locale, Transducer> inflectionTransducers = new ConcurrentHashMap<Locale, Transducer>();
+	protected final static Map<Locale, Transducer> guessTransducers = new ConcurrentHashMap<Locale, Transducer>();
+	protected final static Map<Locale, Transducer> guessSegmentTransducers = new ConcurrentHashMap<Locale, Transducer>();
+	protected final static Map<Locale, Transducer> fuzzyTransducers = new ConcurrentHashMap<Locale, Transducer>();
+	protected final static Map<Locale, Transducer> fuzzySegmentTransducers = new ConcurrentHashMap<Locale, Transducer>();
 
 	private final static Set<Locale> supportedAnalyzeLocales = new HashSet<>();
 	private final static Set<Locale> supportedGuessLocales = new HashSet<>();
@@ -46,6 +62,46 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 	protected final static Set<Locale> supportedInflectionLocales = new HashSet<>();
 	
 	private final static Map<Locale, String[]> inflectionTags = new HashMap<Locale, String[]>();
+
+	private final static ReentrantLock transducerLock = new ReentrantLock();
+
+	protected IAnalysisMetrics metrics = IAnalysisMetrics.NOOP;
+
+	protected int maxReadingsPerToken = Integer.MAX_VALUE;
+
+	/**
+	 * Hard cap on the number of readings kept per token, applied on top of
+	 * the maxReadings passed to analyze.
+	 */
+	public void setMaxReadingsPerToken(int maxReadingsPerToken) {
+		this.maxReadingsPerToken = maxReadingsPerToken;
+	}
+
+	public int getMaxReadingsPerToken() {
+		return maxReadingsPerToken;
+	}
+
+	public void setMetrics(IAnalysisMetrics metrics) {
+		this.metrics = metrics == null ? IAnalysisMetrics.NOOP : metrics;
+	}
+
+	public IAnalysisMetrics getMetrics() {
+		return metrics;
+	}
+
+	protected PersistentCache persistentCache;
+
+	/**
+	 * Sets a cache of token analyses shared across runs and processes, or
+	 * null for none. Analyses degraded by the budget are not cached.
+	 */
+	public void setPersistentCache(PersistentCache persistentCache) {
+		this.persistentCache = persistentCache;
+	}
+
+	public PersistentCache getPersistentCache() {
+		return persistentCache;
+	}
 	
 	public static List<String> getEditDistance(String string, int distance) {
 		List<String> ret = new ArrayList<String>();
@@ -92,6 +148,12 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 				this.lemma = lemma;
 			}
 
+			public WordPart(WordPart wp) {
+				this.lemma = wp.lemma;
+				for (Map.Entry<String, List<String>> e : wp.tags.entrySet())
+					tags.put(e.getKey(), new ArrayList<String>(e.getValue()));
+			}
+
 			public void setLemma(String lemma) {
 				this.lemma = lemma;
 			}
@@ -147,6 +209,14 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 			this.weight = weight;
 		}
 
+		public Result(Result r) {
+			this.weight = r.weight;
+			for (Map.Entry<String, List<String>> e : r.globalTags.entrySet())
+				globalTags.put(e.getKey(), new ArrayList<String>(e.getValue()));
+			for (WordPart wp : r.wordParts)
+				wordParts.add(new WordPart(wp));
+		}
+
 		public float getWeight() {
 			return weight;
 		}
@@ -176,8 +246,9 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 
 	}
 
+	private final static List<String> resources = new ArrayList<String>();
+
 	static {
-		List<String> resources = new ArrayList<String>();
 		try {
 			Enumeration<URL> paths = HFSTLexicalAnalysisService.class.getClassLoader().getResources("fi/seco/lexical/hfst/resources.lst");
 			while (paths.hasMoreElements()) {
@@ -212,7 +283,8 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 	protected char[] getAlphabet(Locale l) {
 		char[] alphabet = alphabets.get(l);
 		if (alphabet!=null) return alphabet;
-		synchronized (this) {
+		transducerLock.lock();
+		try {
 			alphabet = alphabets.get(l);
 			if (alphabet!=null) return alphabet;
 			List<String> ta = getTransducer(l, "analysis", analysisTransducers).getAlphabet();
@@ -222,13 +294,44 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 			for (int i=0;i<alphabet.length;i++) alphabet[i]=taf.get(i);
 			alphabets.put(l,alphabet);
 			return alphabet;
+		} finally {
+			transducerLock.unlock();
 		}
 	}
 
+	private final static Map<Locale, Long> resourceFingerprints = new ConcurrentHashMap<Locale, Long>();
+
+	/**
+	 * @return a fingerprint of the names, sizes and modification times of the
+	 *         resources of the locale, which changes when they are replaced
+	 */
+	protected static long getResourceFingerprint(Locale l) {
+		Long fingerprint = resourceFingerprints.get(l);
+		if (fingerprint != null) return fingerprint;
+		String prefix = l.getLanguage() + "-";
+		long h = 1125899906842597L;
+		for (String resource : resources)
+			if (resource.startsWith(prefix)) {
+				StringBuilder sb = new StringBuilder(resource);
+				URL u = HFSTLexicalAnalysisService.class.getResource(resource);
+				if (u != null) try {
+					URLConnection c = u.openConnection();
+					sb.append(':').append(c.getContentLengthLong()).append(':').append(c.getLastModified());
+				} catch (IOException e) {
+					log.warn("Couldn't read the size of " + resource, e);
+				}
+				for (int i = 0; i < sb.length(); i++)
+					h = 31 * h + sb.charAt(i);
+			}
+		resourceFingerprints.put(l, h);
+		return h;
+	}
+
 	protected Transducer getTransducer(Locale l, String type, Map<Locale, Transducer> s) {
 		Transducer t = s.get(l);
 		if (t != null) return t;
-		synchronized (this) {
+		transducerLock.lock();
+		try {
 			t = s.get(l);
 			if (t != null) return t;
 			String file = l.getLanguage() + "-" + type + ".hfst.ol";
@@ -242,8 +345,8 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 				TransducerHeader h = new TransducerHeader(charstream);
 				TransducerAlphabet a = new TransducerAlphabet(charstream, h.getSymbolCount());
 				if (h.isWeighted())
-					t = new WeightedTransducer(charstream, h, a);
-				else t = new UnweightedTransducer(charstream, h, a);
+					t = new WeightedLookupTransducer(charstream, h, a);
+				else t = new UnweightedLookupTransducer(charstream, h, a);
 				// t.analyze(""); // make sure transducer is synchronously initialized
 			} catch (IOException e) {
 				log.error("Couldn't initialize transducer " + file, e);
@@ -251,6 +354,8 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 			}
 			s.put(l, t);
 			return t;
+		} finally {
+			transducerLock.unlock();
 		}
 	}
 
@@ -263,6 +368,13 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 			this.analysis = analysis;
 		}
 
+		public WordToResults(WordToResults wtr) {
+			this.word = wtr.word;
+			this.analysis = new ArrayList<Result>(wtr.analysis.size());
+			for (Result r : wtr.analysis)
+				analysis.add(new Result(r));
+		}
+
 		public String getWord() {
 			return word;
 		}
@@ -277,43 +389,314 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 		}
 	}
 	
-	protected static Result toResult(Transducer.Result tr) {
-		Result r = new Result(tr.getWeight());
+	/**
+	 * Receives what {@link #parseSymbols(List, ResultSink)} reads from a
+	 * transducer result. Word parts are built one at a time: the current part
+	 * gets a lemma and tags, and is then either added to the result or
+	 * dropped by starting a new one. The methods concerning the current part
+	 * are only called once there is one.
+	 */
+	private interface ResultSink {
+		public void newPart();
+
+		public boolean hasPart();
+
+		public boolean partHasLemma();
+
+		public boolean partHasTags();
+
+		public void setLemma(String lemma);
+
+		public void addTag(String key, String value);
+
+		/**
+		 * Adds the tags of a symbol of the form [KEY=VALUE][KEY=VALUE]...,
+		 * checked with {@link HFSTLexicalAnalysisService#isTagSymbol(String)}
+		 */
+		public void addTags(String symbol);
+
+		public void addPart();
+
+		public boolean hasParts();
+
+		public boolean firstPartHasTags();
+
+		public void addGlobalTag(String key, String value);
+
+		/**
+		 * Makes the tags of the current part the global tags of the result.
+		 */
+		public void partTagsToGlobal();
+
+		/**
+		 * @return whether the result or any of its added parts have tags
+		 */
+		public boolean hasTags();
+
+		/**
+		 * Keeps only the first part, tagged with the lemmas of the others.
+		 */
+		public void mergeParts();
+	}
+
+	private static final class ResultBuilder implements ResultSink {
+		private Result r;
+		private WordPart w;
+
+		ResultBuilder(float weight) {
+			r = new Result(weight);
+		}
+
+		@Override
+		public void newPart() {
+			w = new WordPart();
+		}
+
+		@Override
+		public boolean hasPart() {
+			return w != null;
+		}
+
+		@Override
+		public boolean partHasLemma() {
+			return w.getLemma() != null;
+		}
+
+		@Override
+		public boolean partHasTags() {
+			return !w.getTags().isEmpty();
+		}
+
+		@Override
+		public void setLemma(String lemma) {
+			w.setLemma(lemma);
+		}
+
+		@Override
+		public void addTag(String key, String value) {
+			w.addTag(key, value);
+		}
+
+		@Override
+		public void addTags(String symbol) {
+			for (int i = 0; i < symbol.length();) {
+				int eq = symbol.indexOf('=', i);
+				int end = symbol.indexOf(']', eq);
+				w.addTag(symbol.substring(i + 1, eq), symbol.substring(eq + 1, end));
+				i = end + 1;
+			}
+		}
+
+		@Override
+		public void addPart() {
+			r.addPart(w);
+		}
+
+		@Override
+		public boolean hasParts() {
+			return !r.getParts().isEmpty();
+		}
+
+		@Override
+		public boolean firstPartHasTags() {
+			return !r.getParts().get(0).getTags().isEmpty();
+		}
+
+		@Override
+		public void addGlobalTag(String key, String value) {
+			r.addGlobalTag(key, value);
+		}
+
+		@Override
+		public void partTagsToGlobal() {
+			r.setGlobalTags(w.getTags());
+		}
+
+		@Override
+		public boolean hasTags() {
+			if (!r.getGlobalTags().isEmpty()) return true;
+			for (WordPart wp : r.getParts())
+				if (!wp.getTags().isEmpty()) return true;
+			return false;
+		}
+
+		@Override
+		public void mergeParts() {
+			Result r2 = new Result();
+			WordPart fwp = r.getParts().get(0);
+			for (int j = 1; j < r.getParts().size(); j++)
+				fwp.addTag(r.getParts().get(j).getLemma(), r.getParts().get(j).getLemma());
+			r2.addPart(fwp);
+			r = r2;
+		}
+	}
+
+	/**
+	 * Appends the lemmas of the added parts, without building word parts or
+	 * tag maps.
+	 */
+	private static final class LemmaSink implements ResultSink {
+		private final StringBuilder out;
+		private boolean part;
+		private String lemma;
+		private boolean partTags;
+		private int parts;
+		private int firstPartEnd;
+		private boolean firstPartTags;
+		private boolean tags;
+
+		LemmaSink(StringBuilder out) {
+			this.out = out;
+		}
+
+		@Override
+		public void newPart() {
+			part = true;
+			lemma = null;
+			partTags = false;
+		}
+
+		@Override
+		public boolean hasPart() {
+			return part;
+		}
+
+		@Override
+		public boolean partHasLemma() {
+			return lemma != null;
+		}
+
+		@Override
+		public boolean partHasTags() {
+			return partTags;
+		}
+
+		@Override
+		public void setLemma(String lemma) {
+			this.lemma = lemma;
+		}
+
+		@Override
+		public void addTag(String key, String value) {
+			partTags = true;
+		}
+
+		@Override
+		public void addTags(String symbol) {
+			partTags = true;
+		}
+
+		@Override
+		public void addPart() {
+			if (lemma != null) out.append(lemma);
+			if (parts++ == 0) {
+				firstPartEnd = out.length();
+				firstPartTags = partTags;
+			}
+			if (partTags) tags = true;
+		}
+
+		@Override
+		public boolean hasParts() {
+			return parts > 0;
+		}
+
+		@Override
+		public boolean firstPartHasTags() {
+			return firstPartTags;
+		}
+
+		@Override
+		public void addGlobalTag(String key, String value) {
+			tags = true;
+		}
+
+		@Override
+		public void partTagsToGlobal() {
+			if (partTags) tags = true;
+		}
+
+		@Override
+		public boolean hasTags() {
+			return tags;
+		}
+
+		@Override
+		public void mergeParts() {
+			out.setLength(firstPartEnd);
+		}
+	}
+
+	/**
+	 * @return whether the symbol is of the form [KEY=VALUE][KEY=VALUE]..., with
+	 *         non-empty keys and no brackets or equals signs inside the keys
+	 *         and values
+	 */
+	private static boolean isTagSymbol(String s) {
+		int i = 0;
+		while (i < s.length()) {
+			if (s.charAt(i) != '[') return false;
+			int start = i++;
+			int eq = -1;
+			for (;; i++) {
+				if (i == s.length()) return false;
+				char c = s.charAt(i);
+				if (c == ']') break;
+				if (c == '[') return false;
+				if (c == '=') {
+					if (eq != -1) return false;
+					eq = i;
+				}
+			}
+			if (eq <= start + 1) return false;
+			i++;
+		}
+		return true;
+	}
+
+	private static void addTag(ResultSink sink, String tag) {
+		if (sink.hasParts() && !sink.firstPartHasTags()) sink.addGlobalTag(tag, tag);
+		else sink.addTag(tag, tag);
+	}
+
+	/**
+	 * Reads the word parts, lemmas and tags of the symbols of a transducer
+	 * result into the sink. Malformed tags are logged and skipped.
+	 */
+	private static void parseSymbols(List<String> symbols, ResultSink sink) {
 		final StringBuilder lemma = new StringBuilder();
-		WordPart w = null;
-		if (tr.getSymbols().get(0).startsWith("[")) { //[BOUNDARY=LEXITEM][LEMMA='san'][POS=NOUN][KTN=5][NUM=SG][CASE=NOM][BOUNDARY=COMPOUND][GUESS=COMPOUND][LEMMA='oma'][POS=ADJECTIVE][KTN=1%0][CMP=POS][NUM=SG][CASE=NOM][BOUNDARY=COMPOUND][GUESS=COMPOUND][LEMMA='lehti'][POS=NOUN][KTN=7][KAV=F][NUM=SG][CASE=PAR][ALLO=A][BOUNDARY=LEXITEM][CASECHANGE=NONE]
+		if (symbols.get(0).startsWith("[")) { //[BOUNDARY=LEXITEM][LEMMA='san'][POS=NOUN][KTN=5][NUM=SG][CASE=NOM][BOUNDARY=COMPOUND][GUESS=COMPOUND][LEMMA='oma'][POS=ADJECTIVE][KTN=1%0][CMP=POS][NUM=SG][CASE=NOM][BOUNDARY=COMPOUND][GUESS=COMPOUND][LEMMA='lehti'][POS=NOUN][KTN=7][KAV=F][NUM=SG][CASE=PAR][ALLO=A][BOUNDARY=LEXITEM][CASECHANGE=NONE]
 			String parsingPartialTag = null;
 			boolean parsingTag = false;
 			boolean lastWasLemmaStart = false;
-			for (String s : tr.getSymbols()) {
+			for (String s : symbols) {
 				if (s.length() == 0) continue;
 				if (s.charAt(0) == '[' && !lastWasLemmaStart) {
 					if (s.length() == 1) {
 						parsingPartialTag = null;
 						parsingTag = true;
 					} else {
-						String[] tmp = s.split("=");
-						if ("[WORD_ID".equals(tmp[0]))
+						if (isKey(s, "[WORD_ID"))
 							lastWasLemmaStart = true;
-						if ("[BOUNDARY".equals(tmp[0]) || lastWasLemmaStart) {
+						if (isKey(s, "[BOUNDARY") || lastWasLemmaStart) {
 							parsingPartialTag = null;
 							parsingTag = false;
-							if (w == null)
-								w = new WordPart();
-							else if (w.getLemma() != null) {
-								r.addPart(w);
-								w = new WordPart();
+							if (!sink.hasPart())
+								sink.newPart();
+							else if (sink.partHasLemma()) {
+								sink.addPart();
+								sink.newPart();
 							}
 							lemma.setLength(0);
 						} else if (s.charAt(s.length() - 1) == ']') {
 							parsingPartialTag = null;
 							lastWasLemmaStart = false;
 							parsingTag = false;
-							if (w == null) w = new WordPart();
-							tmp=s.split("[=\\[\\]]");
-							for (int i=0;i<tmp.length;i+=3)
-								w.addTag(tmp[i+1], tmp[i+2]);									
+							if (!sink.hasPart()) sink.newPart();
+							if (isTagSymbol(s)) sink.addTags(s);
+							else log.warn("Skipping malformed tag symbol " + s + " in " + symbols);
 						} else {
+							String[] tmp = s.split("=");
 							if (tmp[0].length() > 0 && tmp[0].charAt(0) == '[')
 								parsingPartialTag = tmp[0].substring(1);
 							else parsingPartialTag = tmp[0];
@@ -326,16 +709,22 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 				} else if (s.charAt(s.length() - 1) == ']' && !lastWasLemmaStart) {
 					lastWasLemmaStart = false;
 					if (parsingPartialTag != null) {
-						if (w==null) w = new WordPart();
-						w.addTag(parsingPartialTag, lemma.toString());
+						if (!sink.hasPart()) sink.newPart();
+						sink.addTag(parsingPartialTag, lemma.toString());
 					} else if (parsingTag) {
 						if (s.equals("]"))
 							lemma.append('[');
 						else {
-							String[] tmp = lemma.toString().split("=");
-							w.addTag(tmp[0], tmp[1]);
+							int eq = lemma.indexOf("=");
+							if (eq > 0) {
+								if (!sink.hasPart()) sink.newPart();
+								sink.addTag(lemma.substring(0, eq), lemma.substring(eq + 1));
+							} else log.warn("Skipping malformed tag [" + lemma + s + " in " + symbols);
 						}
-					} else w.setLemma(lemma.toString());
+					} else {
+						if (!sink.hasPart()) sink.newPart();
+						sink.setLemma(lemma.toString());
+					}
 					lemma.setLength(0);
 					parsingPartialTag = null;
 					parsingTag = false;
@@ -344,72 +733,51 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 					lemma.append(s);
 				}
 			}
-			if (!w.getTags().isEmpty()) if (w.getLemma() != null)
-				r.addPart(w);
-			else r.setGlobalTags(w.getTags());
+			if (sink.hasPart() && sink.partHasTags()) if (sink.partHasLemma())
+				sink.addPart();
+			else sink.partTagsToGlobal();
 		} else { //sanomat#lehti N Par Sg 	write[V]+V+PROG 	writ[N]+ING[N/N]+N söka<verb><infinitiv><aktiv>
-			w = new WordPart();
+			sink.newPart();
 			boolean previousWasTag = false;
-			for (String s : tr.getSymbols())
+			for (String s : symbols)
 				if (s.length() == 0 || s.charAt(0) == '#' || s.charAt(0) == ':')
 					previousWasTag = true;
-				else if (s.charAt(0) == ' ') {
-					previousWasTag = true;
-					if (s.length() > 1) if (!r.getParts().isEmpty() && r.getParts().get(0).getTags().isEmpty())
-						r.addGlobalTag(s.substring(1), s.substring(1));
-					else w.addTag(s.substring(1), s.substring(1));
-				} else if (s.charAt(0) == '+') {
+				else if (s.charAt(0) == ' ' || s.charAt(0) == '+') {
 					previousWasTag = true;
-					if (s.length() > 1) if (!r.getParts().isEmpty() && r.getParts().get(0).getTags().isEmpty())
-						r.addGlobalTag(s.substring(1), s.substring(1));
-					else w.addTag(s.substring(1), s.substring(1));
+					if (s.length() > 1) addTag(sink, s.substring(1));
 				} else if (s.charAt(0) == '<' && s.charAt(s.length() - 1) == '>') {
 					previousWasTag = true;
-					if (!r.getParts().isEmpty() && r.getParts().get(0).getTags().isEmpty())
-						r.addGlobalTag(s.substring(1, s.length() - 1), s.substring(1, s.length() - 1));
-					else w.addTag(s.substring(1, s.length() - 1), s.substring(1, s.length() - 1));
+					addTag(sink, s.substring(1, s.length() - 1));
 				} else if (s.charAt(0) == '<' || s.charAt(0) == '>') {
 					previousWasTag = true;
-					if (s.length() > 1) if (!r.getParts().isEmpty() && r.getParts().get(0).getTags().isEmpty())
-						r.addGlobalTag(s.substring(1), s.substring(1));
-					else w.addTag(s.substring(1), s.substring(1));
+					if (s.length() > 1) addTag(sink, s.substring(1));
 				} else if (s.charAt(0) == '[' && s.charAt(s.length() - 1) == ']') {
 					previousWasTag = true;
-					if (!r.getParts().isEmpty() && r.getParts().get(0).getTags().isEmpty())
-						r.addGlobalTag(s.substring(1, s.length() - 1), s.substring(1, s.length() - 1));
-					else w.addTag(s.substring(1, s.length() - 1), s.substring(1, s.length() - 1));
+					addTag(sink, s.substring(1, s.length() - 1));
 				} else {
 					if (previousWasTag) {
 						if (lemma.length() > 0) {
-							w.setLemma(lemma.toString());
-							r.addPart(w);
+							sink.setLemma(lemma.toString());
+							sink.addPart();
 						}
-						w = new WordPart();
+						sink.newPart();
 						lemma.setLength(0);
 						previousWasTag = false;
 					}
 					lemma.append(s);
 				}
 			if (lemma.length() > 0) {
-				w.setLemma(lemma.toString());
-				r.addPart(w);
-			}
-			boolean hasTags = !r.getGlobalTags().isEmpty();
-			if (!hasTags) for (WordPart wp : r.getParts())
-				if (!wp.getTags().isEmpty()) {
-					hasTags = true;
-					break;
-				}
-			if (!hasTags && !r.getParts().isEmpty()) {
-				Result r2 = new Result();
-				WordPart fwp = r.getParts().get(0);
-				for (int j = 1; j < r.getParts().size(); j++)
-					fwp.addTag(r.getParts().get(j).getLemma(), r.getParts().get(j).getLemma());
-				r2.addPart(fwp);
-				r = r2;
+				sink.setLemma(lemma.toString());
+				sink.addPart();
 			}
+			if (!sink.hasTags() && sink.hasParts()) sink.mergeParts();
 		}
-		return r;
+	}
+
+	protected static Result toResult(Transducer.Result tr) {
+		ResultBuilder b = new ResultBuilder(tr.getWeight());
+		parseSymbols(tr.getSymbols(), b);
+		return b.r;
 	}
 
 	protected static List<Result> toResult(List<Transducer.Result> analysis) {
@@ -420,6 +788,26 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 		}
 		return ret;
 	}
+
+	/**
+	 * Converts only the maxResults lowest weight transducer results, so that
+	 * no tag maps are built for readings that would be discarded.
+	 */
+	protected static List<Result> toResult(List<Transducer.Result> analysis, int maxResults) {
+		if (analysis.size() > maxResults) {
+			analysis = new ArrayList<Transducer.Result>(analysis);
+			Collections.sort(analysis, (o1, o2) -> Float.compare(o1.getWeight(), o2.getWeight()));
+			analysis = analysis.subList(0, maxResults);
+		}
+		return toResult(analysis);
+	}
+
+	protected static void keepLowestWeight(List<Result> r, int maxResults) {
+		if (r.size() > maxResults) {
+			Collections.sort(r, weightComparator);
+			r.subList(maxResults, r.size()).clear();
+		}
+	}
 	
 	public static class RecognitionResult {
 		private final int recognized;
@@ -449,165 +837,541 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 		int recognized = 0;
 		int unrecognized = 0;
 		Collection<String> labels = tokenize(str, lang);
-		outer: for (String label : labels) {
-			for (Transducer.Result tr : tc.analyze(label))
-				if (!tr.getSymbols().isEmpty()) {
-					recognized++;
-					continue outer;
-				}
-			unrecognized++;
-		}
+		for (String label : labels)
+			if (accepts(tc, label)) recognized++;
+			else unrecognized++;
 		return new RecognitionResult(recognized,unrecognized);
 	}
 
+	/**
+	 * @return whether the transducer has any analysis for the label, checked
+	 *         without materializing the analyses where the transducer allows
+	 */
+	protected static boolean accepts(Transducer t, String label) {
+		if (t instanceof ILookupTransducer) return ((ILookupTransducer) t).accepts(label);
+		for (Transducer.Result tr : t.analyze(label))
+			if (!tr.getSymbols().isEmpty()) return true;
+		return false;
+	}
+
+	/**
+	 * @return the maxResults lowest weight analyses of the label, searched in
+	 *         order of weight where the transducer allows
+	 */
+	protected static List<Transducer.Result> analyze(Transducer t, String label, int maxResults) {
+		if (maxResults == Integer.MAX_VALUE || !(t instanceof ILookupTransducer)) return t.analyze(label);
+		return ((ILookupTransducer) t).analyze(label, maxResults);
+	}
+
 	public List<WordToResults> analyze(String str, Locale lang, List<String> inflections, boolean segmentBaseform, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance) {
+		return analyze(str, lang, inflections, segmentBaseform, guessUnknown, segmentUnknown, maxErrorCorrectDistance, AnalysisBudget.UNLIMITED);
+	}
+
+	protected static void addDegradedTag(List<Result> r, List<String> skipped) {
+		for (String stage : skipped)
+			for (Result res : r)
+				res.addGlobalTag(AnalysisBudget.DEGRADED, stage);
+	}
+
+	protected static void addDegradedTag(List<WordToResults> ret, int from, String stage) {
+		for (int i = from; i < ret.size(); i++)
+			for (Result res : ret.get(i).getAnalysis())
+				if (!res.getGlobalTags().containsKey("WHITESPACE")) res.addGlobalTag(AnalysisBudget.DEGRADED, stage);
+	}
+
+	public List<WordToResults> analyze(String str, Locale lang, List<String> inflections, boolean segmentBaseform, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance, AnalysisBudget budget) {
+		return analyze(str, lang, inflections, segmentBaseform, guessUnknown, segmentUnknown, maxErrorCorrectDistance, Integer.MAX_VALUE, false, budget);
+	}
+
+	/**
+	 * Readings that baseform and inflection output is read from: the BEST_MATCH
+	 * readings, or the first reading if none is marked.
+	 */
+	protected static List<Result> getBestMatches(List<Result> r) {
+		List<Result> ret = new ArrayList<Result>(1);
+		for (Result res : r)
+			if (res.getGlobalTags().containsKey("BEST_MATCH")) ret.add(res);
+		if (ret.isEmpty() && !r.isEmpty()) ret.add(r.get(0));
+		return ret;
+	}
+
+	/**
+	 * Canonical reading for a token of a class other than WORD that the
+	 * analysis transducer did not recognize, or that was not looked up.
+	 */
+	protected static Result getTokenClassResult(String label, TokenClass tokenClass) {
+		WordPart wp = new WordPart(label);
+		wp.addTag("UPOS", tokenClass.getUpos());
+		return new Result().addGlobalTag("TOKEN_CLASS", tokenClass.name()).addPart(wp);
+	}
+
+	/**
+	 * Fuzzy correction, guessing and the UNKNOWN fallback for a token the
+	 * analysis transducer did not recognize. Tokens classified as something
+	 * else than words get their canonical reading instead.
+	 *
+	 * @param tokenClass the class of the label, as given by
+	 *        {@link LexicalAnalysisUtil#classify(String)}
+	 */
+	protected void analyzeUnknown(final String label, TokenClass tokenClass, final List<Result> r, Locale lang, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance, AnalysisBudget budget, List<String> skipped, IAnalysisMetrics metrics) {
+		if (tokenClass != TokenClass.WORD) {
+			metrics.increment(Counter.CLASSIFIED_TOKENS, 1);
+			r.add(getTokenClassResult(label, tokenClass));
+			return;
+		}
+		long time;
+		if (r.isEmpty() && maxErrorCorrectDistance>0 && supportedFuzzyLocales.contains(lang) ) {
+			time = metrics.startTimer();
+			Transducer tc2 = segmentUnknown ? getTransducer(lang,"analysis-fuzzy-segment",fuzzySegmentTransducers) : getTransducer(lang,"analysis-fuzzy",fuzzyTransducers);
+			fuzzy: for (int j=1;j<=maxErrorCorrectDistance;j++) {
+				if (budget.isExhausted()) {
+					skipped.add("FUZZY_CORRECTION");
+					break;
+				}
+				List<String> candidates = getEditDistance(label,j);
+				metrics.increment(Counter.FUZZY_CANDIDATES, candidates.size());
+				for (String c : candidates) {
+					if (budget.isExhausted()) {
+						skipped.add("FUZZY_CORRECTION");
+						break fuzzy;
+					}
+					budget.spend(1);
+					List<Transducer.Result> res2 = tc2.analyze(c);
+					for (Transducer.Result r2: res2)
+						if (r2.getWeight()<(j+1)*1000)
+							r.add(toResult(r2).addGlobalTag("EDIT_DISTANCE", ""+j));
+				}
+				if (!r.isEmpty()) break;
+			}
+			metrics.recordSince(Stage.FUZZY_CORRECTION, time);
+		}
+		if (r.isEmpty() && guessUnknown && supportedGuessLocales.contains(lang) && label.length()>=4) { // Fixed cutoff, don't guess words shorter than 4 chars.
+			time = metrics.startTimer();
+			guess(label, r, lang, segmentUnknown, budget, skipped);
+			if (!r.isEmpty()) metrics.increment(Counter.GUESSED_TOKENS, 1);
+			metrics.recordSince(Stage.GUESSING, time);
+		}
+		if (r.isEmpty()) {
+			metrics.increment(Counter.UNKNOWN_TOKENS, 1);
+			r.add(new Result().addGlobalTag("UNKNOWN", "TRUE").addPart(new WordPart(label)));
+		}
+	}
+
+	private static final class GuessKey {
+		private final Locale lang;
+		private final String reversedSuffix;
+		private final boolean segmentUnknown;
+
+		GuessKey(Locale lang, String reversedSuffix, boolean segmentUnknown) {
+			this.lang = lang;
+			this.reversedSuffix = reversedSuffix;
+			this.segmentUnknown = segmentUnknown;
+		}
+
+		@Override
+		public int hashCode() {
+			return reversedSuffix.hashCode() + 31 * lang.hashCode() + (segmentUnknown ? 17 : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			GuessKey o = (GuessKey) obj;
+			return o.reversedSuffix.equals(reversedSuffix) && o.lang.equals(lang) && o.segmentUnknown == segmentUnknown;
+		}
+	}
+
+	/**
+	 * Guesser readings for a suffix with the word independent cleanup done and
+	 * equal readings merged, counts[i] being the number of guesser paths
+	 * behind results[i]. Never modified once cached.
+	 */
+	private static final class GuessTemplates {
+		private final List<Result> results;
+		private final int[] counts;
+
+		GuessTemplates(List<Result> results, int[] counts) {
+			this.results = results;
+			this.counts = counts;
+		}
+	}
+
+	/** Cached for suffixes the guesser does not recognize. */
+	private static final GuessTemplates UNKNOWN_SUFFIX = new GuessTemplates(Collections.<Result>emptyList(), new int[0]);
+
+	private final BoundedCache<GuessKey, GuessTemplates> guessCache = new BoundedCache<GuessKey, GuessTemplates>(100000);
+
+	/**
+	 * Adds readings guessed from the longest suffix of the label known to the
+	 * guesser. Readings for a suffix are cached, so that unknown words sharing
+	 * an ending are resolved by gluing their own prefix onto the cached
+	 * lemmas and segments. Suffixes the guesser does not recognize are cached
+	 * as well, so longer suffixes are not looked up again.
+	 */
+	protected void guess(String label, final List<Result> r, Locale lang, boolean segmentUnknown, AnalysisBudget budget, List<String> skipped) {
+		Transducer tc2 = segmentUnknown ? getTransducer(lang,"analysis-guess-segment",guessSegmentTransducers) : getTransducer(lang,"analysis-guess",guessTransducers);
+		String reversedLabel = StringUtils.reverse(label);
+		GuessTemplates guesses = null;
+		int length = reversedLabel.length();
+		while (guesses == null && length>3) { // Fixed cutoff of min 3 last chars to use 
+			if (budget.isExhausted()) {
+				skipped.add("GUESSING");
+				break;
+			}
+			guesses = getGuessTemplates(tc2, lang, segmentUnknown, reversedLabel.substring(0,length--), budget);
+		}
+		if (guesses == null) return;
+		String prefix = label.substring(0,label.length()-length-1);
+		ObjectIntHashMap<Result> gres = new ObjectIntHashMap<Result>();
+		outer: for (int i = 0; i < guesses.results.size(); i++) {
+			Result gr = new Result(guesses.results.get(i));
+			gr.getParts().get(0).setLemma(prefix+gr.getParts().get(0).getLemma());
+			List<String> gsegments = gr.getParts().get(0).getTags().get("SEGMENT");
+			if (gsegments!=null) {
+				List<String> nsegments = new ArrayList<String>();
+				int clindex = label.length()-1;
+				for (int j=gsegments.size()-1;j>=0;j--) {
+					String cs = gsegments.get(j);
+					if (cs.contains("{WB}")) continue outer;
+					int cindex = cs.length()-1; 
+					while (cindex>=0 && clindex>=0) {
+						if (cs.charAt(cindex)=='»') cindex--;
+						else {
+							String tmp = cs.substring(0,cindex+1);
+							if (tmp.endsWith("{WB}") || tmp.endsWith("{XB}") || tmp.endsWith("{DB}") || tmp.endsWith("{MB}")) cindex-=4;
+							else if (tmp.endsWith("{STUB}")) cindex-=6;
+							else if (tmp.endsWith("{hyph?}")) cindex-=7;
+							else if (label.charAt(clindex--)!=cs.charAt(cindex--)) break;
+						}
+					}
+					if (cindex!=-1) {
+						nsegments.add(label.substring(0,clindex+2) + cs.substring(cindex+2));
+						clindex=-1;
+						break;
+					} else nsegments.add(gsegments.get(j));
+					if (j!=0 && clindex==-1) continue outer;
+				}
+				Collections.reverse(nsegments);
+				if (clindex!=-1) nsegments.set(0,label.substring(0,clindex+1)+nsegments.get(0));
+				gr.getParts().get(0).getTags().put("SEGMENT", nsegments);
+			}
+			gres.putOrAdd(gr, guesses.counts[i], guesses.counts[i]);
+		}
+		gres.forEach(new ObjectIntProcedure<Result>() {
+			public void apply(Result value, int v2) { value.setWeight(value.getWeight()/v2);value.addGlobalTag("GUESS_COUNT",""+v2); r.add(value); };
+		});
+	}
+
+	/**
+	 * @return the cleaned up guesser readings for the reversed suffix, or null
+	 *         if the guesser does not recognize it
+	 */
+	private GuessTemplates getGuessTemplates(Transducer tc2, Locale lang, boolean segmentUnknown, String reversedSuffix, AnalysisBudget budget) {
+		GuessKey key = new GuessKey(lang, reversedSuffix, segmentUnknown);
+		GuessTemplates guesses = guessCache.get(key);
+		if (guesses != null) return guesses == UNKNOWN_SUFFIX ? null : guesses;
+		budget.spend(1);
+		List<Transducer.Result> analysis = tc2.analyze(reversedSuffix);
+		if (analysis.isEmpty()) {
+			guessCache.put(key, UNKNOWN_SUFFIX);
+			return null;
+		}
+		for (Transducer.Result tr: analysis) {
+			if (tr.getSymbols().isEmpty()) continue;
+			Collections.reverse(tr.getSymbols());
+			if (!tr.getSymbols().get(0).startsWith("[")) tr.getSymbols().add(0,"[WORD_ID=");
+		}
+		ObjectIntHashMap<Result> gres = new ObjectIntHashMap<Result>();
+		for (Result gr : toResult(analysis)) {
+			if (gr.getParts().isEmpty()) continue;
+			boolean empty = true;
+			for (WordPart p : gr.getParts()) if (!"".equals(p.getLemma())) {
+				empty=false;
+				break;
+			}
+			if (empty) continue;
+			gr.getParts().get(0).getTags().remove("GUESS_CATEGORY");
+			gr.getParts().get(0).getTags().remove("KAV");
+			gr.getParts().get(0).getTags().remove("PROPER");
+			gr.getParts().get(0).getTags().remove("SEM");
+			List<String> pos = gr.getParts().get(0).getTags().get("UPOS");
+			if (pos!=null) for (int j=0;j<pos.size();j++)
+				if (pos.get(j).equals("PROPN")) pos.set(j,"NOUN");
+			gres.putOrAdd(gr, 1, 1);
+		}
+		final List<Result> results = new ArrayList<Result>(gres.size());
+		final int[] counts = new int[gres.size()];
+		gres.forEach(new ObjectIntProcedure<Result>() {
+			public void apply(Result value, int v2) { counts[results.size()] = v2; results.add(value); };
+		});
+		guesses = new GuessTemplates(results, counts);
+		guessCache.put(key, guesses);
+		return guesses;
+	}
+
+	protected static List<Result> markBestMatch(List<Result> r) {
+		List<Result> bestResult = new ArrayList<Result>();
+		float cw = Float.MAX_VALUE;
+		Collections.sort(r, weightComparator);
+		for (Result res : r) {
+			if (res.getWeight() < cw) {
+				bestResult.clear();
+				bestResult.add(res);
+				cw = res.getWeight();
+			} else if (res.getWeight() == cw) bestResult.add(res);
+		}
+		for (Result res: bestResult)
+			res.addGlobalTag("BEST_MATCH", "TRUE");
+		return bestResult;
+	}
+
+	/**
+	 * @return the persistent cache key for the analysis of the label with
+	 *         the given options, or null if the label can't be cached
+	 */
+	private byte[] getCacheKey(String label, Locale lang, List<String> inflections, boolean segmentBaseform, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance, int maxReadings, boolean enrichBestMatchOnly) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeUTF(getClass().getName());
+			out.writeUTF(lang.toString());
+			out.writeLong(getResourceFingerprint(lang));
+			out.writeByte(WordToResultsCodec.VERSION);
+			out.writeByte((segmentBaseform ? 1 : 0) | (guessUnknown ? 2 : 0) | (segmentUnknown ? 4 : 0) | (enrichBestMatchOnly ? 8 : 0));
+			out.writeInt(maxErrorCorrectDistance);
+			out.writeInt(maxReadings);
+			out.writeInt(inflections.size());
+			for (String inflection : inflections)
+				out.writeUTF(inflection);
+			out.writeUTF(label);
+		} catch (IOException e) {
+			return null;
+		}
+		return bytes.toByteArray();
+	}
+
+	private List<Result> getCached(byte[] key, String label) {
+		try {
+			byte[] value = persistentCache.get(key);
+			if (value == null) return null;
+			try (WordToResultsCodec.Reader r = new WordToResultsCodec.Reader(new ByteArrayInputStream(value))) {
+				return r.read(label);
+			}
+		} catch (IOException e) {
+			log.warn("Couldn't read the analysis cache", e);
+			return null;
+		}
+	}
+
+	private void putCached(byte[] key, String label, List<Result> r) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		try (WordToResultsCodec.Writer w = new WordToResultsCodec.Writer(bytes)) {
+			w.write(label, r);
+			persistentCache.put(key, bytes.toByteArray());
+		} catch (IOException e) {
+			log.warn("Couldn't write the analysis cache", e);
+		}
+	}
+
+	/**
+	 * @param maxReadings number of lowest weight readings to keep per token, Integer.MAX_VALUE for all
+	 * @param enrichBestMatchOnly compute BASEFORM_SEGMENT and INFLECTED tags only for the BEST_MATCH readings
+	 */
+	public List<WordToResults> analyze(String str, Locale lang, List<String> inflections, boolean segmentBaseform, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance, int maxReadings, boolean enrichBestMatchOnly, AnalysisBudget budget) {
 		Transducer tc = getTransducer(lang, "analysis", analysisTransducers);
+		int readings = Math.max(1, Math.min(maxReadings, maxReadingsPerToken));
+		long time = metrics.startTimer();
 		Collection<String> labels = tokenize(str,lang);
+		metrics.recordSince(Stage.TOKENIZATION, time);
+		return assemble(str, labels, label -> analyzeToken(label, tc, lang, inflections, segmentBaseform, guessUnknown, segmentUnknown, maxErrorCorrectDistance, readings, enrichBestMatchOnly, budget, metrics), metrics);
+	}
+
+	/**
+	 * Streaming variant of analyze. Hands the analysis to the consumer one
+	 * sentence at a time, each preceded by the whitespace before it, so memory
+	 * use does not grow with the length of the text. Concatenated, the lists
+	 * handed over are what analyze returns, except that HEAD tags count from
+	 * the start of each list.
+	 */
+	public void analyze(String str, Locale lang, List<String> inflections, boolean segmentBaseform, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance, int maxReadings, boolean enrichBestMatchOnly, AnalysisBudget budget, Consumer<List<WordToResults>> sentences) {
+		Transducer tc = getTransducer(lang, "analysis", analysisTransducers);
+		int readings = Math.max(1, Math.min(maxReadings, maxReadingsPerToken));
+		long time = metrics.startTimer();
+		TextSpans tokens = LexicalAnalysisUtil.tokenSpans(str);
+		TextSpans sentenceSpans = LexicalAnalysisUtil.sentenceSpans(str);
+		metrics.recordSince(Stage.TOKENIZATION, time);
+		List<WordToResults> ret = new ArrayList<WordToResults>();
+		int sentence = 0;
+		int lastIndexInOriginal = 0;
+		for (int i = 0; i < tokens.size(); i++) {
+			int start = tokens.start(i);
+			if (sentence + 1 < sentenceSpans.size() && start >= sentenceSpans.start(sentence + 1)) {
+				while (sentence + 1 < sentenceSpans.size() && start >= sentenceSpans.start(sentence + 1))
+					sentence++;
+				if (!ret.isEmpty()) {
+					sentences.accept(ret);
+					ret = new ArrayList<WordToResults>();
+				}
+			}
+			if (start > lastIndexInOriginal) {
+				String whitespace = str.substring(lastIndexInOriginal, start);
+				ret.add(new WordToResults(whitespace, Collections.singletonList(new Result().addGlobalTag("WHITESPACE", "TRUE").addPart(new WordPart(whitespace)))));
+			}
+			lastIndexInOriginal = tokens.end(i);
+			if (start == lastIndexInOriginal) continue;
+			metrics.increment(Counter.TOKENS, 1);
+			String label = tokens.get(i);
+			ret.add(new WordToResults(label, analyzeToken(label, tc, lang, inflections, segmentBaseform, guessUnknown, segmentUnknown, maxErrorCorrectDistance, readings, enrichBestMatchOnly, budget, metrics)));
+		}
+		if (!ret.isEmpty()) sentences.accept(ret);
+	}
+
+	/**
+	 * Analyzes text already split into sentences and tokens, e.g. read from
+	 * CoNLL-U, skipping sentence detection and tokenization. The result is laid
+	 * out as if the tokens were separated by single spaces, so each pair of
+	 * tokens has a WHITESPACE entry between them. Empty tokens are dropped.
+	 */
+	public List<WordToResults> analyzeTokens(List<List<String>> sentences, Locale lang, List<String> inflections, boolean segmentBaseform, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance, int maxReadings, boolean enrichBestMatchOnly, AnalysisBudget budget) {
+		Transducer tc = getTransducer(lang, "analysis", analysisTransducers);
+		int readings = Math.max(1, Math.min(maxReadings, maxReadingsPerToken));
+		List<String> labels = new ArrayList<String>();
+		for (List<String> sentence : sentences)
+			for (String token : sentence)
+				if (!token.isEmpty()) labels.add(token);
+		return assemble(String.join(" ", labels), labels, label -> analyzeToken(label, tc, lang, inflections, segmentBaseform, guessUnknown, segmentUnknown, maxErrorCorrectDistance, readings, enrichBestMatchOnly, budget, metrics), metrics);
+	}
+
+	/**
+	 * Analyzes a batch of documents vocabulary first: all documents are
+	 * tokenized, each distinct token is analyzed once, in parallel, and every
+	 * occurrence gets its own copy of the readings. The results are the same
+	 * as from analyzing the documents one by one without a budget.
+	 */
+	public List<List<WordToResults>> analyzeBatch(List<String> documents, Locale lang, List<String> inflections, boolean segmentBaseform, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance, int maxReadings, boolean enrichBestMatchOnly) {
+		Transducer tc = getTransducer(lang, "analysis", analysisTransducers);
+		int readings = Math.max(1, Math.min(maxReadings, maxReadingsPerToken));
+		List<Collection<String>> labels = tokenizeBatch(documents, lang);
+		Map<String, List<Result>> vocabulary = analyzeVocabulary(labels, label -> analyzeToken(label, tc, lang, inflections, segmentBaseform, guessUnknown, segmentUnknown, maxErrorCorrectDistance, readings, enrichBestMatchOnly, AnalysisBudget.UNLIMITED, metrics));
+		List<List<WordToResults>> ret = new ArrayList<List<WordToResults>>(documents.size());
+		for (int i = 0; i < documents.size(); i++)
+			ret.add(assemble(documents.get(i), labels.get(i), label -> copyResults(vocabulary.get(label)), metrics));
+		return ret;
+	}
+
+	protected List<Collection<String>> tokenizeBatch(List<String> documents, Locale lang) {
+		long time = metrics.startTimer();
+		List<Collection<String>> ret = documents.parallelStream().map(d -> tokenize(d, lang)).collect(Collectors.toList());
+		metrics.recordSince(Stage.TOKENIZATION, time);
+		return ret;
+	}
+
+	/**
+	 * @return the analysis of each distinct non-empty label, computed in
+	 *         parallel
+	 */
+	protected static <V> Map<String, V> analyzeVocabulary(List<? extends Collection<String>> labels, Function<String, V> analysis) {
+		Set<String> vocabulary = new HashSet<String>();
+		for (Collection<String> l : labels)
+			vocabulary.addAll(l);
+		vocabulary.remove("");
+		return vocabulary.parallelStream().collect(Collectors.toConcurrentMap(Function.identity(), analysis));
+	}
+
+	protected static List<Result> copyResults(List<Result> r) {
+		List<Result> ret = new ArrayList<Result>(r.size());
+		for (Result res : r)
+			ret.add(new Result(res));
+		return ret;
+	}
+
+	/**
+	 * Lays the token analyses out along the original string, with WHITESPACE
+	 * entries for whatever lies between the tokens.
+	 */
+	private List<WordToResults> assemble(String str, Collection<String> labels, Function<String, List<Result>> analysis, IAnalysisMetrics metrics) {
 		List<WordToResults> ret = new ArrayList<WordToResults>(labels.size());
 		int lastIndexInOriginal = 0;
 		int curIndexInOriginal = 0;
 		for (String label : labels) {
 			lastIndexInOriginal = curIndexInOriginal;
-			while (!str.substring(curIndexInOriginal).startsWith(label)) curIndexInOriginal++;
+			while (!str.startsWith(label, curIndexInOriginal))
+				if (++curIndexInOriginal > str.length()) throw new StringIndexOutOfBoundsException(curIndexInOriginal);
 			if (lastIndexInOriginal != curIndexInOriginal) {
 				String whitespace = str.substring(lastIndexInOriginal, curIndexInOriginal);
 				ret.add(new WordToResults(whitespace, Collections.singletonList(new Result().addGlobalTag("WHITESPACE", "TRUE").addPart(new WordPart(whitespace)))));
 			}
 			curIndexInOriginal += label.length();
 			if (!"".equals(label)) {
-				final List<Result> r = toResult(tc.analyze(label));
-				if (r.isEmpty() && maxErrorCorrectDistance>0 && supportedFuzzyLocales.contains(lang) ) {
-					Transducer tc2 = segmentUnknown ? getTransducer(lang,"analysis-fuzzy-segment",fuzzySegmentTransducers) : getTransducer(lang,"analysis-fuzzy",fuzzyTransducers);
-					for (int j=1;j<=maxErrorCorrectDistance;j++) {
-						for (String c : getEditDistance(label,j)) {
-							List<Transducer.Result> res2 = tc2.analyze(c);
-							for (Transducer.Result r2: res2)
-								if (r2.getWeight()<(j+1)*1000)
-									r.add(toResult(r2).addGlobalTag("EDIT_DISTANCE", ""+j));
-						}
-						if (!r.isEmpty()) break;
+				metrics.increment(Counter.TOKENS, 1);
+				ret.add(new WordToResults(label, analysis.apply(label)));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Readings of a single non-empty token, from the persistent cache if there
+	 * is one.
+	 */
+	protected List<Result> analyzeToken(String label, Transducer tc, Locale lang, List<String> inflections, boolean segmentBaseform, boolean guessUnknown, boolean segmentUnknown, int maxErrorCorrectDistance, int maxReadings, boolean enrichBestMatchOnly, AnalysisBudget budget, IAnalysisMetrics metrics) {
+		byte[] cacheKey = persistentCache == null ? null : getCacheKey(label, lang, inflections, segmentBaseform, guessUnknown, segmentUnknown, maxErrorCorrectDistance, maxReadings, enrichBestMatchOnly);
+		if (cacheKey != null) {
+			List<Result> cached = getCached(cacheKey, label);
+			if (cached != null) {
+				metrics.increment(Counter.CACHED_TOKENS, 1);
+				return cached;
+			}
+		}
+		List<String> skipped = new ArrayList<String>(0);
+		TokenClass tokenClass = LexicalAnalysisUtil.classify(label);
+		final List<Result> r;
+		if (tokenClass.isLookup()) {
+			budget.spend(1);
+			long time = metrics.startTimer();
+			r = toResult(analyze(tc, label, maxReadings), maxReadings);
+			metrics.recordSince(Stage.TRANSDUCER_LOOKUP, time);
+		} else r = new ArrayList<Result>(1);
+		if (r.isEmpty()) analyzeUnknown(label, tokenClass, r, lang, guessUnknown, segmentUnknown, maxErrorCorrectDistance, budget, skipped, metrics);
+		keepLowestWeight(r, maxReadings);
+		List<Result> bestResult = markBestMatch(r);
+		List<Result> enriched = enrichBestMatchOnly ? bestResult : r;
+		long time = metrics.startTimer();
+		if (segmentBaseform)
+			segment: for (Result res : enriched)
+				for (WordPart wp : res.getParts()) {
+					List<String> bwpSegments = getBaseformSegments(wp.getLemma(), lang, guessUnknown, maxErrorCorrectDistance, budget);
+					if (bwpSegments == null) {
+						skipped.add("BASEFORM_SEGMENTATION");
+						break segment;
 					}
+					if (!bwpSegments.isEmpty()) wp.getTags().put("BASEFORM_SEGMENT",bwpSegments);
 				}
-				if (r.isEmpty() && guessUnknown && supportedGuessLocales.contains(lang) && label.length()>=4) { // Fixed cutoff, don't guess words shorter than 4 chars.
-					Transducer tc2 = segmentUnknown ? getTransducer(lang,"analysis-guess-segment",guessSegmentTransducers) : getTransducer(lang,"analysis-guess",guessTransducers);
-					String reversedLabel = StringUtils.reverse(label);
-					List<Transducer.Result> analysis = Collections.EMPTY_LIST;
-					int length = reversedLabel.length();
-					while (analysis.isEmpty() && length>3) // Fixed cutoff of min 3 last chars to use 
-						analysis = tc2.analyze(reversedLabel.substring(0,length--));
-					if (!analysis.isEmpty()) {
-						for (Transducer.Result tr: analysis) {
-							Collections.reverse(tr.getSymbols());
-							if (!tr.getSymbols().get(0).startsWith("[")) tr.getSymbols().add(0,"[WORD_ID=");
-						}
-						ObjectIntHashMap<Result> gres = new ObjectIntHashMap<Result>();
-						outer: for (Result gr : toResult(analysis)) {
-							if (gr.getParts().isEmpty()) continue;
-							boolean empty = true;
-							for (WordPart p : gr.getParts()) if (!"".equals(p.getLemma())) {
-								empty=false;
-								break;
-							}
-							if (empty) continue;
-							gr.getParts().get(0).getTags().remove("GUESS_CATEGORY");
-							gr.getParts().get(0).getTags().remove("KAV");
-							gr.getParts().get(0).getTags().remove("PROPER");
-							gr.getParts().get(0).getTags().remove("SEM");
-							List<String> pos = gr.getParts().get(0).getTags().get("UPOS");
-							if (pos!=null) for (int j=0;j<pos.size();j++)
-								if (pos.get(j).equals("PROPN")) pos.set(j,"NOUN");
-							gr.getParts().get(0).setLemma(label.substring(0,label.length()-length-1)+gr.getParts().get(0).getLemma());
-							List<String> gsegments = gr.getParts().get(0).getTags().get("SEGMENT");
-							if (gsegments!=null) {
-								List<String> nsegments = new ArrayList<String>();
-								int clindex = label.length()-1;
-								for (int j=gsegments.size()-1;j>=0;j--) {
-									String cs = gsegments.get(j);
-									if (cs.contains("{WB}")) continue outer;
-									int cindex = cs.length()-1; 
-									while (cindex>=0 && clindex>=0) {
-										if (cs.charAt(cindex)=='»') cindex--;
-										else {
-											String tmp = cs.substring(0,cindex+1);
-											if (tmp.endsWith("{WB}") || tmp.endsWith("{XB}") || tmp.endsWith("{DB}") || tmp.endsWith("{MB}")) cindex-=4;
-											else if (tmp.endsWith("{STUB}")) cindex-=6;
-											else if (tmp.endsWith("{hyph?}")) cindex-=7;
-											else if (label.charAt(clindex--)!=cs.charAt(cindex--)) break;
-										}
-									}
-									if (cindex!=-1) {
-										nsegments.add(label.substring(0,clindex+2) + cs.substring(cindex+2));
-										clindex=-1;
-										break;
-									} else nsegments.add(gsegments.get(j));
-									if (j!=0 && clindex==-1) continue outer;
-								}
-								Collections.reverse(nsegments);
-								if (clindex!=-1) nsegments.set(0,label.substring(0,clindex+1)+nsegments.get(0));
-								gr.getParts().get(0).getTags().put("SEGMENT", nsegments);
-							}
-							gres.putOrAdd(gr, 1, 1);
+		if (segmentBaseform) metrics.recordSince(Stage.BASEFORM_SEGMENTATION, time);
+		if (!inflections.isEmpty() && supportedInflectionLocales.contains(lang)) {
+			time = metrics.startTimer();
+			Transducer tic = getTransducer(lang, "inflection", inflectionTransducers);
+			String[] tagdelims = inflectionTags.get(lang);
+			for (Result res : enriched)
+				for (WordPart wp : res.getParts()) {
+					List<String> inflectedC = new ArrayList<String>();
+					List<String> inflectedFormC = new ArrayList<String>();
+					for (String inflection : inflections) {
+						String inflected = firstToString(tic, wp.getLemma() + tagdelims[0] + inflection.replace(" ",tagdelims[2]+tagdelims[1])+ tagdelims[2]);
+						if (!inflected.isEmpty()) {
+							inflectedC.add(inflected);
+							inflectedFormC.add(inflection);
 						}
-						gres.forEach(new ObjectIntProcedure<Result>() {
-							public void apply(Result value, int v2) { value.setWeight(value.getWeight()/v2);value.addGlobalTag("GUESS_COUNT",""+v2); r.add(value); };
-						});
+					}
+					if (!inflectedC.isEmpty()) {
+						wp.getTags().put("INFLECTED", inflectedC);
+						wp.getTags().put("INFLECTED_FORM", inflectedFormC);
 					}
 				}
-				if (r.isEmpty())
-					r.add(new Result().addGlobalTag("UNKNOWN", "TRUE").addPart(new WordPart(label)));
-				List<Result> bestResult = new ArrayList<Result>();
-				float cw = Float.MAX_VALUE;
-				Collections.sort(r, weightComparator);
-				for (Result res : r) {
-					if (res.getWeight() < cw) {
-						bestResult.clear();
-						bestResult.add(res);
-						cw = res.getWeight();
-					} else if (res.getWeight() == cw) bestResult.add(res);
-				}
-				for (Result res: bestResult)
-					res.addGlobalTag("BEST_MATCH", "TRUE");
-				if (segmentBaseform)
-					for (Result res : r)
-						for (WordPart wp : res.getParts()) {
-							List<WordToResults> analysis = analyze(wp.getLemma(), lang, Collections.EMPTY_LIST, false, guessUnknown, true,maxErrorCorrectDistance);
-							if (analysis.size()==0)
-								continue;
-							Result br = getBestResult(analysis.get(0));
-							List<String> bwpSegments = new ArrayList<String>();
-							for (WordPart bwp : br.getParts()) {
-								if (bwp.getTags().containsKey("SEGMENT"))
-									bwpSegments.addAll(bwp.getTags().get("SEGMENT"));
-								else bwpSegments.add(bwp.getLemma());
-								bwpSegments.add("{WB}");
-							}
-							bwpSegments.remove(bwpSegments.size()-1);
-							wp.getTags().put("BASEFORM_SEGMENT",bwpSegments);
-						}
-				if (!inflections.isEmpty() && supportedInflectionLocales.contains(lang)) {
-					Transducer tic = getTransducer(lang, "inflection", inflectionTransducers);
-					String[] tagdelims = inflectionTags.get(lang);
-					for (Result res : r)
-						for (WordPart wp : res.getParts()) {
-							List<String> inflectedC = new ArrayList<String>();
-							List<String> inflectedFormC = new ArrayList<String>();
-							for (String inflection : inflections) {
-								String inflected = firstToString(tic.analyze(wp.getLemma() + tagdelims[0] + inflection.replace(" ",tagdelims[2]+tagdelims[1])+ tagdelims[2]));
-								if (!inflected.isEmpty()) {
-									inflectedC.add(inflected);
-									inflectedFormC.add(inflection);
-								}
-							}
-							if (!inflectedC.isEmpty()) {
-								wp.getTags().put("INFLECTED", inflectedC);
-								wp.getTags().put("INFLECTED_FORM", inflectedFormC);
-							}
-						}
-				}
-				ret.add(new WordToResults(label, r));
-			}
+			metrics.recordSince(Stage.INFLECTION, time);
 		}
-		return ret;
+		addDegradedTag(r, skipped);
+		if (cacheKey != null && skipped.isEmpty()) putCached(cacheKey, label, r);
+		return r;
 	}
 	
 	protected static final Comparator<Result> weightComparator = new Comparator<Result>() {
@@ -621,6 +1385,74 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 		
 	};
 	
+	private static final class SegmentKey {
+		private final Locale lang;
+		private final String lemma;
+		private final boolean guessUnknown;
+		private final int maxErrorCorrectDistance;
+		private final int maxReadingsPerToken;
+
+		SegmentKey(Locale lang, String lemma, boolean guessUnknown, int maxErrorCorrectDistance, int maxReadingsPerToken) {
+			this.lang = lang;
+			this.lemma = lemma;
+			this.guessUnknown = guessUnknown;
+			this.maxErrorCorrectDistance = maxErrorCorrectDistance;
+			this.maxReadingsPerToken = maxReadingsPerToken;
+		}
+
+		@Override
+		public int hashCode() {
+			return lemma.hashCode() + 31 * lang.hashCode() + (guessUnknown ? 17 : 0) + 37 * maxErrorCorrectDistance + 41 * maxReadingsPerToken;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			SegmentKey o = (SegmentKey) obj;
+			return o.lemma.equals(lemma) && o.lang.equals(lang) && o.guessUnknown == guessUnknown && o.maxErrorCorrectDistance == maxErrorCorrectDistance && o.maxReadingsPerToken == maxReadingsPerToken;
+		}
+	}
+
+	private final BoundedCache<SegmentKey, List<String>> baseformSegmentCache = new BoundedCache<SegmentKey, List<String>>(100000);
+
+	/**
+	 * Analysis used to segment a lemma when computing BASEFORM_SEGMENT. It
+	 * runs inside the BASEFORM_SEGMENTATION stage, so its own tokens and
+	 * stages are not recorded.
+	 */
+	protected List<WordToResults> analyzeBaseformSegments(String lemma, Locale lang, boolean guessUnknown, int maxErrorCorrectDistance, AnalysisBudget budget) {
+		Transducer tc = getTransducer(lang, "analysis", analysisTransducers);
+		int readings = Math.max(1, maxReadingsPerToken);
+		return assemble(lemma, tokenize(lemma, lang), label -> analyzeToken(label, tc, lang, Collections.<String>emptyList(), false, guessUnknown, true, maxErrorCorrectDistance, readings, false, budget, IAnalysisMetrics.NOOP), IAnalysisMetrics.NOOP);
+	}
+
+	/**
+	 * Segments of the best analysis of a lemma, memoized per locale and
+	 * analysis settings. Returns an empty list if the lemma has no analysis,
+	 * and null if the budget ran out before the segments could be computed.
+	 */
+	protected List<String> getBaseformSegments(String lemma, Locale lang, boolean guessUnknown, int maxErrorCorrectDistance, AnalysisBudget budget) {
+		SegmentKey key = new SegmentKey(lang, lemma, guessUnknown, maxErrorCorrectDistance, maxReadingsPerToken);
+		List<String> segments = baseformSegmentCache.get(key);
+		if (segments == null) {
+			if (budget.isExhausted()) return null;
+			segments = new ArrayList<String>();
+			List<WordToResults> analysis = analyzeBaseformSegments(lemma, lang, guessUnknown, maxErrorCorrectDistance, budget);
+			if (analysis.size()!=0) {
+				Result br = getBestResult(analysis.get(0));
+				for (WordPart bwp : br.getParts()) {
+					if (bwp.getTags().containsKey("SEGMENT"))
+						segments.addAll(bwp.getTags().get("SEGMENT"));
+					else segments.add(bwp.getLemma());
+					segments.add("{WB}");
+				}
+				segments.remove(segments.size()-1);
+				if (br.getGlobalTags().containsKey(AnalysisBudget.DEGRADED)) return segments; // don't memoize partial work
+			}
+			baseformSegmentCache.put(key, segments);
+		}
+		return new ArrayList<String>(segments);
+	}
+
 	protected Result getBestResult(WordToResults cr) {
 		Result ret = null;
 		for (Result r : cr.getAnalysis())
@@ -628,24 +1460,189 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 		return ret;
 	}
 
-	protected String getBestLemma(WordToResults cr, Locale lang, boolean segments) {
-		StringBuilder cur = new StringBuilder();
+	/**
+	 * Appends a segment with the boundary markers removed in a single pass.
+	 * Word boundaries become # if wordBoundaries is set.
+	 */
+	protected static void appendWithoutBoundaries(String s, StringBuilder cur, boolean wordBoundaries) {
+		int i = 0;
+		while (i < s.length()) {
+			char c = s.charAt(i);
+			if (c == '»') i++;
+			else if (c == '{') {
+				if (s.startsWith("{WB}", i)) {
+					if (wordBoundaries) cur.append('#');
+					i += 4;
+				} else if (s.startsWith("{XB}", i) || s.startsWith("{DB}", i) || s.startsWith("{MB}", i)) i += 4;
+				else if (s.startsWith("{STUB}", i)) i += 6;
+				else if (s.startsWith("{hyph?}", i)) i += 7;
+				else {
+					cur.append(c);
+					i++;
+				}
+			} else {
+				cur.append(c);
+				i++;
+			}
+		}
+	}
+
+	protected void appendBestLemma(WordToResults cr, boolean segments, StringBuilder cur) {
+		int start = cur.length();
 		for (Result r : cr.getAnalysis())
-			if (r.getGlobalTags().containsKey("BEST_MATCH") || cur.length()==0) {
-				cur.setLength(0);
+			if (r.getGlobalTags().containsKey("BEST_MATCH") || cur.length()==start) {
+				cur.setLength(start);
 				for (WordPart wp : r.getParts())
 					if (segments) {
 						if (wp.getTags().containsKey("BASEFORM_SEGMENT")) for (String s : wp.getTags().get("BASEFORM_SEGMENT")) 
 							if (!"-0".equals(s)) 
-								cur.append(s.replace("»", "").replace("{WB}", "#").replace("{XB}", "").replace("{DB}", "").replace("{MB}", "").replace("{STUB}", "").replace("{hyph?}", ""));
+								appendWithoutBoundaries(s, cur, true);
 						cur.append('#');
 					}
 					else cur.append(wp.getLemma());
-				if (segments && cur.length()>0) cur.setLength(cur.length()-1);
+				if (segments && cur.length()>start) cur.setLength(cur.length()-1);
 			}
+	}
+
+	protected String getBestLemma(WordToResults cr, Locale lang, boolean segments) {
+		StringBuilder cur = new StringBuilder();
+		appendBestLemma(cr, segments, cur);
 		return cur.toString();
 	}
+
+	private static boolean isKey(String s, String key) {
+		return s.startsWith(key) && (s.length() == key.length() || s.charAt(key.length()) == '=');
+	}
+
+	/**
+	 * Appends the lemma toResult would produce for a transducer result,
+	 * without building word parts or tag maps.
+	 */
+	protected static void appendLemma(Transducer.Result tr, StringBuilder out) {
+		parseSymbols(tr.getSymbols(), new LemmaSink(out));
+	}
+
+	/**
+	 * Lemma-only baseform: the lemma of the lowest weight reading is read
+	 * straight from the transducer output, and the full analysis is only run
+	 * for tokens the analysis transducer does not recognize.
+	 */
+	protected String lemmatize(String str, Locale lang, boolean guessUnknown, int maxErrorCorrectDistance) {
+		Transducer tc = getTransducer(lang, "analysis", analysisTransducers);
+		long time = metrics.startTimer();
+		Collection<String> labels = tokenize(str,lang);
+		metrics.recordSince(Stage.TOKENIZATION, time);
+		return assembleLemmas(str, labels, (label, ret) -> appendTokenLemma(label, tc, lang, guessUnknown, maxErrorCorrectDistance, ret));
+	}
+
+	/**
+	 * Lays the token lemmas out along the original string, keeping whatever
+	 * lies between the tokens.
+	 */
+	private String assembleLemmas(String str, Collection<String> labels, BiConsumer<String, StringBuilder> lemma) {
+		StringBuilder ret = new StringBuilder(str.length());
+		int lastIndexInOriginal = 0;
+		int curIndexInOriginal = 0;
+		for (String label : labels) {
+			lastIndexInOriginal = curIndexInOriginal;
+			while (!str.startsWith(label, curIndexInOriginal))
+				if (++curIndexInOriginal > str.length()) throw new StringIndexOutOfBoundsException(curIndexInOriginal);
+			ret.append(str, lastIndexInOriginal, curIndexInOriginal);
+			curIndexInOriginal += label.length();
+			if ("".equals(label)) continue;
+			metrics.increment(Counter.TOKENS, 1);
+			lemma.accept(label, ret);
+		}
+		return ret.toString();
+	}
+
+	private void appendTokenLemma(String label, Transducer tc, Locale lang, boolean guessUnknown, int maxErrorCorrectDistance, StringBuilder ret) {
+		TokenClass tokenClass = LexicalAnalysisUtil.classify(label);
+		if (!tokenClass.isLookup()) {
+			metrics.increment(Counter.CLASSIFIED_TOKENS, 1);
+			ret.append(label);
+			return;
+		}
+		long time = metrics.startTimer();
+		List<Transducer.Result> analysis = tc instanceof ILookupTransducer ? ((ILookupTransducer) tc).analyzeCheapest(label) : tc.analyze(label);
+		metrics.recordSince(Stage.TRANSDUCER_LOOKUP, time);
+		int start = ret.length();
+		if (appendCheapestLemma(analysis, ret)) {
+			// all the cheapest readings had empty lemmas, so continue to the costlier ones
+			if (ret.length() == start && tc instanceof ILookupTransducer) appendCheapestLemma(tc.analyze(label), ret);
+		} else {
+			List<Result> r = new ArrayList<Result>();
+			analyzeUnknown(label, tokenClass, r, lang, guessUnknown, false, maxErrorCorrectDistance, AnalysisBudget.UNLIMITED, new ArrayList<String>(0), metrics);
+			markBestMatch(r);
+			appendBestLemma(new WordToResults(label, r), false, ret);
+		}
+	}
+
+	/**
+	 * Baseforms a batch of documents vocabulary first, like
+	 * {@link #analyzeBatch}. The results are the same as from calling
+	 * {@link #baseform(String, Locale, boolean, boolean, int)} on each
+	 * document.
+	 */
+	public List<String> baseformBatch(List<String> documents, Locale lang, boolean segments, boolean guessUnknown, int maxErrorCorrectDistance) {
+		List<String> ret = new ArrayList<String>(documents.size());
+		if (segments) {
+			List<List<WordToResults>> analyses = analyzeBatch(documents, lang, Collections.<String>emptyList(), segments, guessUnknown, false, maxErrorCorrectDistance, Integer.MAX_VALUE, true);
+			for (int i = 0; i < documents.size(); i++)
+				try {
+					StringBuilder sb = new StringBuilder();
+					for (WordToResults cr : analyses.get(i))
+						sb.append(getBestLemma(cr, lang, segments));
+					ret.add(sb.toString());
+				} catch (ArrayIndexOutOfBoundsException e) {
+					ret.add(documents.get(i));
+				}
+			return ret;
+		}
+		Transducer tc = getTransducer(lang, "analysis", analysisTransducers);
+		List<Collection<String>> labels = tokenizeBatch(documents, lang);
+		Map<String, String> vocabulary = analyzeVocabulary(labels, label -> {
+			StringBuilder sb = new StringBuilder(label.length());
+			appendTokenLemma(label, tc, lang, guessUnknown, maxErrorCorrectDistance, sb);
+			return sb.toString();
+		});
+		for (int i = 0; i < documents.size(); i++)
+			try {
+				ret.add(assembleLemmas(documents.get(i), labels.get(i), (label, sb) -> sb.append(vocabulary.get(label))));
+			} catch (ArrayIndexOutOfBoundsException e) {
+				ret.add(documents.get(i));
+			}
+		return ret;
+	}
 	
+	/**
+	 * Appends the lemma getBestLemma would choose from the weight-sorted
+	 * readings: that of the last reading of lowest weight, or of the next one
+	 * if that lemma is empty.
+	 *
+	 * @return whether there were any readings
+	 */
+	private static boolean appendCheapestLemma(List<Transducer.Result> analysis, StringBuilder ret) {
+		if (analysis.size() > 1) {
+			analysis = new ArrayList<Transducer.Result>(analysis);
+			Collections.sort(analysis, (o1, o2) -> Float.compare(o1.getWeight(), o2.getWeight()));
+		}
+		float cw = Float.MAX_VALUE;
+		for (Transducer.Result tr : analysis)
+			if (!tr.getSymbols().isEmpty()) {
+				cw = tr.getWeight();
+				break;
+			}
+		if (cw == Float.MAX_VALUE) return false;
+		int start = ret.length();
+		for (Transducer.Result tr : analysis)
+			if (!tr.getSymbols().isEmpty() && (tr.getWeight() == cw || ret.length() == start)) {
+				ret.setLength(start);
+				appendLemma(tr, ret);
+			}
+		return true;
+	}
+
 	protected List<String> getLemmas(WordToResults cr, boolean all) {
 		Stream<Result> analyses = all ? cr.analysis.stream() : cr.analysis.stream().filter(a -> a.globalTags.containsKey("BEST_MATCH"));
 		return analyses.map(a -> a.wordParts.stream().map(wp -> wp.lemma).collect(Collectors.joining())).collect(Collectors.toList());
@@ -654,7 +1651,8 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 	@Override
 	public String baseform(String string, Locale lang, boolean segments, boolean guessUnknown, int maxErrorCorrectDistance) {
 		try {
-			List<WordToResults> crc = analyze(string, lang, Collections.EMPTY_LIST, segments, guessUnknown, false, maxErrorCorrectDistance);
+			if (!segments) return lemmatize(string, lang, guessUnknown, maxErrorCorrectDistance);
+			List<WordToResults> crc = analyze(string, lang, Collections.<String>emptyList(), segments, guessUnknown, false, maxErrorCorrectDistance, Integer.MAX_VALUE, true, AnalysisBudget.UNLIMITED);
 			StringBuilder ret = new StringBuilder();
 			for (WordToResults cr : crc)
 				ret.append(getBestLemma(cr, lang, segments));
@@ -690,6 +1688,17 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 		return "";
 	}
 
+	/**
+	 * firstToString over the lowest weight analysis only, falling back to all
+	 * analyses if that one has no output.
+	 */
+	protected String firstToString(Transducer t, String label) {
+		List<Transducer.Result> best = analyze(t, label, 1);
+		String r = firstToString(best);
+		if (r.isEmpty() && !best.isEmpty() && t instanceof ILookupTransducer) r = firstToString(t.analyze(label));
+		return r;
+	}
+
 	@Override
 	public String hyphenate(String string, Locale lang) {
 		Transducer tc = getTransducer(lang, "hyphenation", hyphenationTransducers);
@@ -697,8 +1706,8 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 		StringBuilder ret = new StringBuilder();
 		for (String label : labels)
 			if (!"".equals(label)) {
-				String r = firstToString(tc.analyze(label));
-				if (r.isEmpty()) r = firstToString(tc.analyze(label.toLowerCase()));
+				String r = firstToString(tc, label);
+				if (r.isEmpty()) r = firstToString(tc, label.toLowerCase());
 				if (r.isEmpty()) r = label;
 				if (r.charAt(r.length() - 1) == '-' || r.charAt(r.length() - 1) == '^')
 					ret.append(r.substring(0, r.length() - 1));
@@ -717,7 +1726,7 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 	@Override
 	public String inflect(String string, List<String> inflections, boolean segments, boolean baseform, boolean guessUnknown, int maxErrorCorrectDistance, Locale lang) {
 		StringBuilder ret = new StringBuilder();
-		for (WordToResults part : analyze(string, lang, inflections, false, guessUnknown, false, maxErrorCorrectDistance)) {
+		for (WordToResults part : analyze(string, lang, inflections, false, guessUnknown, false, maxErrorCorrectDistance, Integer.MAX_VALUE, true, AnalysisBudget.UNLIMITED)) {
 			String inflected = getBestInflection(part, lang, segments, baseform);
 			if (!inflected.isEmpty())
 				ret.append(inflected);
@@ -738,10 +1747,10 @@ public class HFSTLexicalAnalysisService extends ALexicalAnalysisService {
 					if (isegments != null) for (String s : isegments)
 						if (!"-0".equals(s)) {
 							if (segments) {
-								cur.append(s.replace("»", "").replace("{WB}", "#").replace("{XB}", "").replace("{DB}", "").replace("{MB}", "").replace("{STUB}", "").replace("{hyph?}", ""));
+								appendWithoutBoundaries(s, cur, true);
 								cur.append('#');
 							} else 
-								cur.append(s.replace("»", "").replace("{WB}", "").replace("{XB}", "").replace("{DB}", "").replace("{MB}", "").replace("{STUB}", "").replace("{hyph?}", ""));
+								appendWithoutBoundaries(s, cur, false);
 						} else cur.append(wp.getLemma());
 					if (segments && cur.length()>0) cur.setLength(cur.length()-1);
 				}
@@ -0,0 +1,32 @@
+package fi.seco.lexical.hfst;
+
+import java.util.List;
+
+import fi.seco.hfst.Transducer;
+
+/**
+ * Transducer supporting lookups that are cheaper than full analysis when the
+ * caller does not need every output path.
+ */
+public interface ILookupTransducer extends Transducer {
+
+	/**
+	 * @return whether the input has at least one path through the transducer.
+	 *         Returns as soon as a final state is reached, without building
+	 *         any output.
+	 */
+	public boolean accepts(String input);
+
+	/**
+	 * @return the n lowest weight analyses in order of weight, found without
+	 *         enumerating the more expensive paths. Analyses of equal weight
+	 *         are listed in the order {@link #analyze(String)} lists them.
+	 */
+	public List<Result> analyze(String input, int n);
+
+	/**
+	 * @return all the analyses sharing the lowest weight
+	 */
+	public List<Result> analyzeCheapest(String input);
+
+}
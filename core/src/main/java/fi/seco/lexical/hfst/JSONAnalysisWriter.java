@@ -0,0 +1,161 @@
+package fi.seco.lexical.hfst;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.Result;
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.Result.WordPart;
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.WordToResults;
+
+/**
+ * Writes analyses as a single JSON array of words, straight to the underlying
+ * writer, with the same property names as the bean serialization of
+ * {@link WordToResults}. The array is opened on the first word and closed by
+ * {@link #close()}. HEAD tags of the lists handed in are taken to count from
+ * the start of each list, as given by the streaming analyze, and are written
+ * counting from the start of the whole array, so the output is the same as
+ * for the full analysis.
+ */
+public class JSONAnalysisWriter implements Consumer<List<WordToResults>>, Closeable, Flushable {
+
+	private final Writer out;
+	private int words;
+
+	public JSONAnalysisWriter(Writer out) {
+		this.out = out;
+	}
+
+	public JSONAnalysisWriter(OutputStream out) {
+		this(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+	}
+
+	private void writeString(String s) throws IOException {
+		if (s == null) {
+			out.write("null");
+			return;
+		}
+		out.write('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"':
+					out.write("\\\"");
+					break;
+				case '\\':
+					out.write("\\\\");
+					break;
+				case '\n':
+					out.write("\\n");
+					break;
+				case '\r':
+					out.write("\\r");
+					break;
+				case '\t':
+					out.write("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						out.write("\\u00");
+						out.write(Character.forDigit(c >> 4, 16));
+						out.write(Character.forDigit(c & 0xf, 16));
+					} else out.write(c);
+			}
+		}
+		out.write('"');
+	}
+
+	private void writeTags(Map<String, List<String>> tags, int offset) throws IOException {
+		out.write('{');
+		boolean firstTag = true;
+		for (Map.Entry<String, List<String>> e : tags.entrySet()) {
+			if (!firstTag) out.write(',');
+			firstTag = false;
+			writeString(e.getKey());
+			out.write(":[");
+			boolean head = offset != 0 && "HEAD".equals(e.getKey());
+			for (int i = 0; i < e.getValue().size(); i++) {
+				if (i > 0) out.write(',');
+				String v = e.getValue().get(i);
+				if (head && !"0".equals(v)) try {
+					v = String.valueOf(Integer.parseInt(v) + offset);
+				} catch (NumberFormatException ex) {}
+				writeString(v);
+			}
+			out.write(']');
+		}
+		out.write('}');
+	}
+
+	private void writeResult(Result r, int offset) throws IOException {
+		out.write("{\"weight\":");
+		float weight = r.getWeight();
+		out.write(Float.isNaN(weight) || Float.isInfinite(weight) ? "null" : String.valueOf(weight));
+		out.write(",\"globalTags\":");
+		writeTags(r.getGlobalTags(), offset);
+		out.write(",\"parts\":[");
+		for (int i = 0; i < r.getParts().size(); i++) {
+			if (i > 0) out.write(',');
+			WordPart wp = r.getParts().get(i);
+			out.write("{\"lemma\":");
+			writeString(wp.getLemma());
+			out.write(",\"tags\":");
+			writeTags(wp.getTags(), 0);
+			out.write('}');
+		}
+		out.write("]}");
+	}
+
+	/**
+	 * Writes the words of a list, HEAD tags of which point to its entries,
+	 * counting from 1.
+	 */
+	public void write(List<WordToResults> sentence) throws IOException {
+		int offset = words;
+		for (WordToResults wtr : sentence) {
+			out.write(words++ == 0 ? "[" : ",");
+			out.write("{\"word\":");
+			writeString(wtr.getWord());
+			out.write(",\"analysis\":[");
+			for (int i = 0; i < wtr.getAnalysis().size(); i++) {
+				if (i > 0) out.write(',');
+				writeResult(wtr.getAnalysis().get(i), offset);
+			}
+			out.write("]}");
+		}
+	}
+
+	@Override
+	public void accept(List<WordToResults> sentence) {
+		try {
+			write(sentence);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Closes the array, writing an empty one if no words were written, and
+	 * the underlying writer.
+	 */
+	@Override
+	public void close() throws IOException {
+		out.write(words == 0 ? "[]" : "]");
+		out.close();
+	}
+
+}
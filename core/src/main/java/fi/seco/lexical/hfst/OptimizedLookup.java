@@ -0,0 +1,309 @@
+package fi.seco.lexical.hfst;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.carrotsearch.hppc.CharIntHashMap;
+import com.carrotsearch.hppc.CharObjectHashMap;
+import com.carrotsearch.hppc.IntObjectMap;
+
+import fi.seco.hfst.FlagDiacriticOperation;
+import fi.seco.hfst.HfstOptimizedLookup;
+import fi.seco.hfst.Transducer;
+import fi.seco.hfst.TransducerAlphabet;
+import fi.seco.hfst.TransducerHeader;
+
+/**
+ * Traversal of the index and transition tables of an HFST optimized-lookup
+ * transducer, shared by the weighted and unweighted lookup transducers. Input
+ * tokenization, table walking and flag diacritic semantics mirror the lookup
+ * in fi.seco.hfst.
+ *
+ * The n-best search assumes non-negative weights, as in tropical semiring
+ * transducers.
+ */
+abstract class OptimizedLookup {
+
+	protected static final long TRANSITION_TARGET_TABLE_START = HfstOptimizedLookup.TRANSITION_TARGET_TABLE_START;
+	protected static final int NO_SYMBOL = HfstOptimizedLookup.NO_SYMBOL_NUMBER;
+
+	private static final class LetterNode {
+		final CharIntHashMap symbols = new CharIntHashMap();
+		final CharObjectHashMap<LetterNode> children = new CharObjectHashMap<LetterNode>();
+	}
+
+	private static final class Path {
+		final Path previous;
+		final int rank;
+		final int depth;
+		final long index;
+		final int ip;
+		final int output;
+		final float weight;
+		final int[] flags;
+		final boolean complete;
+
+		Path(Path previous, int rank, long index, int ip, int output, float weight, int[] flags, boolean complete) {
+			this.previous = previous;
+			this.rank = rank;
+			this.depth = previous == null ? 0 : previous.depth + 1;
+			this.index = index;
+			this.ip = ip;
+			this.output = output;
+			this.weight = weight;
+			this.flags = flags;
+			this.complete = complete;
+		}
+	}
+
+	/**
+	 * Orders paths by weight, and paths of equal weight in the order a
+	 * depth-first traversal would reach them.
+	 */
+	private static int compare(Path a, Path b) {
+		int c = Float.compare(a.weight, b.weight);
+		if (c != 0 || a == b) return c;
+		while (a.depth > b.depth)
+			a = a.previous;
+		while (b.depth > a.depth)
+			b = b.previous;
+		while (a.previous != b.previous) {
+			a = a.previous;
+			b = b.previous;
+		}
+		return Integer.compare(a.rank, b.rank);
+	}
+
+	private final LetterNode letters = new LetterNode();
+	protected final List<String> keyTable;
+	protected final IntObjectMap<FlagDiacriticOperation> operations;
+	protected final int features;
+	private final float pathWeight;
+
+	/**
+	 * @param pathWeight weight added to every analysis
+	 */
+	OptimizedLookup(TransducerHeader header, TransducerAlphabet alphabet, float pathWeight) {
+		this.pathWeight = pathWeight;
+		this.keyTable = alphabet.keyTable;
+		this.operations = alphabet.operations;
+		this.features = alphabet.features;
+		for (int i = 0; i < header.getInputSymbolCount(); i++) {
+			String s = alphabet.keyTable.get(i);
+			if (s.isEmpty()) continue;
+			LetterNode n = letters;
+			for (int j = 0; j < s.length() - 1; j++) {
+				LetterNode c = n.children.get(s.charAt(j));
+				if (c == null) {
+					c = new LetterNode();
+					n.children.put(s.charAt(j), c);
+				}
+				n = c;
+			}
+			n.symbols.put(s.charAt(s.length() - 1), i);
+		}
+	}
+
+	protected abstract int indexInput(int i);
+
+	protected abstract long indexTarget(int i);
+
+	protected abstract boolean indexFinal(int i);
+
+	protected abstract float indexFinalWeight(int i);
+
+	protected abstract int transitionInput(int i);
+
+	protected abstract int transitionOutput(int i);
+
+	protected abstract long transitionTarget(int i);
+
+	protected abstract float transitionWeight(int i);
+
+	protected abstract boolean transitionFinal(int i);
+
+	protected abstract int transitionCount();
+
+	protected static int pivot(long i) {
+		return (int) (i >= TRANSITION_TARGET_TABLE_START ? i - TRANSITION_TARGET_TABLE_START : i);
+	}
+
+	/**
+	 * Splits the input into input symbols by longest match.
+	 *
+	 * @return the symbols terminated by NO_SYMBOL, or null if some part of the
+	 *         input is not in the input alphabet or the input is empty
+	 */
+	protected int[] toSymbols(String str) {
+		if (str.isEmpty()) return null;
+		int[] input = new int[str.length() + 1];
+		int n = 0;
+		for (int i = 0; i < str.length();) {
+			LetterNode node = letters;
+			int key = 0;
+			int end = i;
+			for (int j = i; j < str.length() && node != null; j++) {
+				int k = node.symbols.get(str.charAt(j));
+				if (k != 0) {
+					key = k;
+					end = j + 1;
+				}
+				node = node.children.get(str.charAt(j));
+			}
+			if (key == 0) return null;
+			input[n++] = key;
+			i = end;
+		}
+		input[n] = NO_SYMBOL;
+		return input;
+	}
+
+	/**
+	 * Applies a flag diacritic operation to the feature values in place.
+	 *
+	 * @return whether the operation allows the path to continue
+	 */
+	protected static boolean applyFlag(FlagDiacriticOperation op, int[] flags) {
+		int cur = flags[op.feature];
+		switch (op.op) {
+			case P:
+				flags[op.feature] = op.value;
+				return true;
+			case N:
+				flags[op.feature] = -op.value;
+				return true;
+			case R:
+				return op.value == 0 ? cur != 0 : cur == op.value;
+			case D:
+				return op.value == 0 ? cur == 0 : cur != op.value;
+			case C:
+				flags[op.feature] = 0;
+				return true;
+			case U:
+				if (cur != 0 && cur != op.value && cur >= 0) return false;
+				flags[op.feature] = op.value;
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	public boolean accepts(String str) {
+		int[] input = toSymbols(str);
+		if (input == null) return false;
+		return accepts(0, input, 0, new int[features]);
+	}
+
+	private boolean accepts(long index, int[] input, int ip, int[] flags) {
+		int i = pivot(index);
+		if (index >= TRANSITION_TARGET_TABLE_START) {
+			if (acceptsEpsilons(i + 1, input, ip, flags)) return true;
+			if (input[ip] == NO_SYMBOL) return transitionCount() > i && transitionFinal(i);
+			return acceptsTransitions(i + 1, input, ip, flags);
+		}
+		if (indexInput(i + 1) == 0 && acceptsEpsilons(pivot(indexTarget(i + 1)), input, ip, flags)) return true;
+		if (input[ip] == NO_SYMBOL) return indexFinal(i);
+		int in = input[ip];
+		return indexInput(i + 1 + in) == in && acceptsTransitions(pivot(indexTarget(i + 1 + in)), input, ip, flags);
+	}
+
+	private boolean acceptsEpsilons(int i, int[] input, int ip, int[] flags) {
+		for (;; i++) {
+			int s = transitionInput(i);
+			FlagDiacriticOperation op = operations.get(s);
+			if (op != null) {
+				int old = flags[op.feature];
+				boolean accepted = applyFlag(op, flags) && accepts(transitionTarget(i), input, ip, flags);
+				flags[op.feature] = old;
+				if (accepted) return true;
+			} else if (s == 0) {
+				if (accepts(transitionTarget(i), input, ip, flags)) return true;
+			} else return false;
+		}
+	}
+
+	private boolean acceptsTransitions(int i, int[] input, int ip, int[] flags) {
+		int in = input[ip];
+		for (int s; (s = transitionInput(i)) != NO_SYMBOL; i++) {
+			if (s != in) return false;
+			if (accepts(transitionTarget(i), input, ip + 1, flags)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Best-first search for the cheapest paths. Paths of equal weight come in
+	 * the order the full analysis lists them, so the results equal the head of
+	 * the full analysis stably sorted by weight.
+	 *
+	 * @param n maximum number of results
+	 * @param cheapestOnly stop once the results would get more expensive than
+	 *            the first one
+	 */
+	public List<Transducer.Result> analyze(String str, int n, boolean cheapestOnly) {
+		int[] input = toSymbols(str);
+		if (input == null || n <= 0) return Collections.emptyList();
+		List<Transducer.Result> ret = new ArrayList<Transducer.Result>(Math.min(n, 8));
+		PriorityQueue<Path> queue = new PriorityQueue<Path>(OptimizedLookup::compare);
+		queue.add(new Path(null, 0, 0, 0, -1, pathWeight, new int[features], false));
+		Path p;
+		while ((p = queue.poll()) != null) {
+			if (cheapestOnly && !ret.isEmpty() && p.weight > ret.get(0).getWeight()) break;
+			if (p.complete) {
+				ret.add(toResult(p));
+				if (ret.size() == n) break;
+			} else expand(p, input, queue);
+		}
+		return ret;
+	}
+
+	private Transducer.Result toResult(Path p) {
+		String[] symbols = new String[p.depth - 1];
+		for (Path c = p.previous; c.previous != null; c = c.previous)
+			symbols[c.depth - 1] = keyTable.get(c.output);
+		List<String> l = new ArrayList<String>(symbols.length);
+		Collections.addAll(l, symbols);
+		return new Transducer.Result(l, p.weight);
+	}
+
+	private void expand(Path p, int[] input, PriorityQueue<Path> queue) {
+		int i = pivot(p.index);
+		int rank = 0;
+		if (p.index >= TRANSITION_TARGET_TABLE_START) {
+			rank = expandEpsilons(p, i + 1, rank, queue);
+			if (input[p.ip] == NO_SYMBOL) {
+				if (transitionCount() > i && transitionFinal(i)) queue.add(new Path(p, rank, 0, p.ip, -1, p.weight + transitionWeight(i), p.flags, true));
+			} else expandTransitions(p, i + 1, input, rank, queue);
+			return;
+		}
+		if (indexInput(i + 1) == 0) rank = expandEpsilons(p, pivot(indexTarget(i + 1)), rank, queue);
+		if (input[p.ip] == NO_SYMBOL) {
+			if (indexFinal(i)) queue.add(new Path(p, rank, 0, p.ip, -1, p.weight + indexFinalWeight(i), p.flags, true));
+			return;
+		}
+		int in = input[p.ip];
+		if (indexInput(i + 1 + in) == in) expandTransitions(p, pivot(indexTarget(i + 1 + in)), input, rank, queue);
+	}
+
+	private int expandEpsilons(Path p, int i, int rank, PriorityQueue<Path> queue) {
+		for (;; i++) {
+			int s = transitionInput(i);
+			FlagDiacriticOperation op = operations.get(s);
+			int[] flags = p.flags;
+			if (op != null) {
+				flags = flags.clone();
+				if (!applyFlag(op, flags)) continue;
+			} else if (s != 0) return rank;
+			queue.add(new Path(p, rank++, transitionTarget(i), p.ip, transitionOutput(i), p.weight + transitionWeight(i), flags, false));
+		}
+	}
+
+	private void expandTransitions(Path p, int i, int[] input, int rank, PriorityQueue<Path> queue) {
+		int in = input[p.ip];
+		for (int s; (s = transitionInput(i)) != NO_SYMBOL && s == in; i++)
+			queue.add(new Path(p, rank++, transitionTarget(i), p.ip + 1, transitionOutput(i), p.weight + transitionWeight(i), p.flags, false));
+	}
+
+}
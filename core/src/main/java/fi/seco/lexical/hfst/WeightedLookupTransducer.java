@@ -0,0 +1,87 @@
+package fi.seco.lexical.hfst;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.List;
+
+import fi.seco.hfst.TransducerAlphabet;
+import fi.seco.hfst.TransducerHeader;
+import fi.seco.hfst.WeightedTransducer;
+
+public class WeightedLookupTransducer extends WeightedTransducer implements ILookupTransducer {
+
+	private final OptimizedLookup lookup;
+
+	public WeightedLookupTransducer(DataInputStream charstream, TransducerHeader h, TransducerAlphabet a) throws IOException {
+		super(charstream, h, a);
+		lookup = new OptimizedLookup(h, a, 0f) {
+
+			@Override
+			protected int indexInput(int i) {
+				return indexTable.getInput(i);
+			}
+
+			@Override
+			protected long indexTarget(int i) {
+				return indexTable.getTarget(i);
+			}
+
+			@Override
+			protected boolean indexFinal(int i) {
+				return indexTable.isFinal(i);
+			}
+
+			@Override
+			protected float indexFinalWeight(int i) {
+				return indexTable.getFinalWeight(i);
+			}
+
+			@Override
+			protected int transitionInput(int i) {
+				return transitionTable.getInput(i);
+			}
+
+			@Override
+			protected int transitionOutput(int i) {
+				return transitionTable.getOutput(i);
+			}
+
+			@Override
+			protected long transitionTarget(int i) {
+				return transitionTable.getTarget(i);
+			}
+
+			@Override
+			protected float transitionWeight(int i) {
+				return transitionTable.getWeight(i);
+			}
+
+			@Override
+			protected boolean transitionFinal(int i) {
+				return transitionTable.isFinal(i);
+			}
+
+			@Override
+			protected int transitionCount() {
+				return transitionTable.size();
+			}
+
+		};
+	}
+
+	@Override
+	public boolean accepts(String input) {
+		return lookup.accepts(input);
+	}
+
+	@Override
+	public List<Result> analyze(String input, int n) {
+		return lookup.analyze(input, n, false);
+	}
+
+	@Override
+	public List<Result> analyzeCheapest(String input) {
+		return lookup.analyze(input, Integer.MAX_VALUE, true);
+	}
+
+}
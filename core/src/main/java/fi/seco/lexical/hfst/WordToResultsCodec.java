@@ -0,0 +1,305 @@
+package fi.seco.lexical.hfst;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.Result;
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.Result.WordPart;
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.WordToResults;
+
+/**
+ * Compact binary format for analyses. A stream starts with a two byte header
+ * and holds any number of documents, each a list of {@link WordToResults}.
+ * Integers are written as protobuf style varints. Words, tag keys, tag values
+ * and lemma suffixes are interned in a dictionary built up along the stream,
+ * so each distinct string is written only once. Lemmas are written as the
+ * length of the prefix they share with the rest of the surface form (after
+ * the preceding compound parts), followed by the remaining suffix.
+ */
+public final class WordToResultsCodec {
+
+	private static final int MAGIC = 'W';
+	public static final int VERSION = 1;
+
+	/** Strings past this many are written out in full every time. */
+	private static final int MAX_DICTIONARY_SIZE = 1 << 20;
+
+	private WordToResultsCodec() {}
+
+	public static byte[] encode(List<WordToResults> document) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (Writer w = new Writer(bytes)) {
+			w.write(document);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	public static List<WordToResults> decode(byte[] bytes) throws IOException {
+		try (Reader r = new Reader(new ByteArrayInputStream(bytes))) {
+			return r.read();
+		}
+	}
+
+	/**
+	 * @return the length of the prefix the lemma shares with the word from
+	 *         offset on, not splitting a surrogate pair, and 1 in the lowest
+	 *         bit if the first character of the word must be lowercased
+	 */
+	private static int commonPrefix(String word, int offset, String lemma) {
+		int max = Math.min(word.length() - offset, lemma.length());
+		if (max == 0) return 0;
+		int lower = 0;
+		char w = word.charAt(offset);
+		char l = lemma.charAt(0);
+		if (w != l) {
+			if (Character.toLowerCase(w) != l) return 0;
+			lower = 1;
+		}
+		int p = 1;
+		while (p < max && word.charAt(offset + p) == lemma.charAt(p))
+			p++;
+		if (Character.isHighSurrogate(lemma.charAt(p - 1))) p--;
+		if (p == 0) return 0;
+		return p << 1 | lower;
+	}
+
+	public static class Writer implements Closeable, Flushable {
+
+		private final OutputStream out;
+		private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+		public Writer(OutputStream out) throws IOException {
+			this.out = out instanceof BufferedOutputStream || out instanceof ByteArrayOutputStream ? out : new BufferedOutputStream(out);
+			this.out.write(MAGIC);
+			this.out.write(VERSION);
+		}
+
+		private void writeVarInt(int v) throws IOException {
+			while ((v & ~0x7f) != 0) {
+				out.write((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			out.write(v);
+		}
+
+		private void writeString(String s) throws IOException {
+			Integer id = dictionary.get(s);
+			if (id != null) {
+				writeVarInt(id + 1);
+				return;
+			}
+			writeVarInt(0);
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(b.length);
+			out.write(b);
+			if (dictionary.size() < MAX_DICTIONARY_SIZE) dictionary.put(s, dictionary.size());
+		}
+
+		private void writeTags(Map<String, List<String>> tags) throws IOException {
+			writeVarInt(tags.size());
+			for (Map.Entry<String, List<String>> e : tags.entrySet()) {
+				writeString(e.getKey());
+				writeVarInt(e.getValue().size());
+				for (String v : e.getValue())
+					writeString(v);
+			}
+		}
+
+		/**
+		 * Writes the readings of a single word, without the word itself.
+		 */
+		public void write(String word, List<Result> results) throws IOException {
+			writeVarInt(results.size());
+			for (Result r : results) {
+				float weight = r.getWeight();
+				boolean integral = weight == (int) weight && Float.floatToIntBits(weight) != Float.floatToIntBits(-0f);
+				writeVarInt(r.getParts().size() << 1 | (integral ? 0 : 1));
+				if (integral) writeVarInt((int) weight << 1 ^ (int) weight >> 31);
+				else {
+					int bits = Float.floatToIntBits(weight);
+					for (int i = 0; i < 4; i++)
+						out.write(bits >>> (8 * i));
+				}
+				writeTags(r.getGlobalTags());
+				int offset = 0;
+				for (WordPart wp : r.getParts()) {
+					String lemma = wp.getLemma();
+					if (lemma == null) writeVarInt(0);
+					else {
+						int p = commonPrefix(word, offset, lemma);
+						writeVarInt(p + 2);
+						writeString(lemma.substring(p >> 1));
+						offset += p >> 1;
+					}
+					writeTags(wp.getTags());
+				}
+			}
+		}
+
+		public void write(WordToResults wtr) throws IOException {
+			writeString(wtr.getWord());
+			write(wtr.getWord(), wtr.getAnalysis());
+		}
+
+		public void write(List<WordToResults> document) throws IOException {
+			writeVarInt(document.size());
+			for (WordToResults wtr : document)
+				write(wtr);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+
+	}
+
+	public static class Reader implements Closeable {
+
+		private final InputStream in;
+		private final List<String> dictionary = new ArrayList<String>();
+
+		public Reader(InputStream in) throws IOException {
+			this.in = in instanceof BufferedInputStream || in instanceof ByteArrayInputStream ? in : new BufferedInputStream(in);
+			int magic = this.in.read();
+			int version = this.in.read();
+			if (magic != MAGIC) throw new IOException("Not an analysis stream");
+			if (version != VERSION) throw new IOException("Unsupported analysis stream version " + version);
+		}
+
+		private int readByte() throws IOException {
+			int b = in.read();
+			if (b == -1) throw new EOFException();
+			return b;
+		}
+
+		private int readVarInt() throws IOException {
+			int v = 0;
+			for (int shift = 0;; shift += 7) {
+				int b = readByte();
+				v |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) return v;
+				if (shift == 28) throw new IOException("Malformed varint");
+			}
+		}
+
+		private String readString() throws IOException {
+			int id = readVarInt();
+			if (id > 0) {
+				if (id > dictionary.size()) throw new IOException("Unknown string " + id);
+				return dictionary.get(id - 1);
+			}
+			byte[] b = new byte[readVarInt()];
+			for (int off = 0; off < b.length;) {
+				int read = in.read(b, off, b.length - off);
+				if (read == -1) throw new EOFException();
+				off += read;
+			}
+			String s = new String(b, StandardCharsets.UTF_8);
+			if (dictionary.size() < MAX_DICTIONARY_SIZE) dictionary.add(s);
+			return s;
+		}
+
+		private void readTags(Map<String, List<String>> tags) throws IOException {
+			for (int i = readVarInt(); i > 0; i--) {
+				String key = readString();
+				int n = readVarInt();
+				List<String> values = new ArrayList<String>(n);
+				for (int j = 0; j < n; j++)
+					values.add(readString());
+				tags.put(key, values);
+			}
+		}
+
+		/**
+		 * Reads the readings of a single word written with
+		 * {@link Writer#write(String, List)}.
+		 */
+		public List<Result> read(String word) throws IOException {
+			int n = readVarInt();
+			List<Result> results = new ArrayList<Result>(n);
+			for (int i = 0; i < n; i++) {
+				int h = readVarInt();
+				float weight;
+				if ((h & 1) == 0) {
+					int w = readVarInt();
+					weight = w >>> 1 ^ -(w & 1);
+				} else {
+					int bits = 0;
+					for (int j = 0; j < 4; j++)
+						bits |= readByte() << (8 * j);
+					weight = Float.intBitsToFloat(bits);
+				}
+				Result r = new Result(weight);
+				readTags(r.getGlobalTags());
+				int offset = 0;
+				for (int j = h >>> 1; j > 0; j--) {
+					int p = readVarInt();
+					WordPart wp;
+					if (p == 0) wp = new WordPart();
+					else {
+						p -= 2;
+						int length = p >> 1;
+						StringBuilder lemma = new StringBuilder(length + 8);
+						if (length > 0) {
+							lemma.append(word, offset, offset + length);
+							if ((p & 1) == 1) lemma.setCharAt(0, Character.toLowerCase(lemma.charAt(0)));
+						}
+						wp = new WordPart(lemma.append(readString()).toString());
+						offset += length;
+					}
+					readTags(wp.getTags());
+					r.addPart(wp);
+				}
+				results.add(r);
+			}
+			return results;
+		}
+
+		public WordToResults readWord() throws IOException {
+			String word = readString();
+			return new WordToResults(word, read(word));
+		}
+
+		/**
+		 * @return the next document in the stream, or null at its end
+		 */
+		public List<WordToResults> read() throws IOException {
+			in.mark(1);
+			if (in.read() == -1) return null;
+			in.reset();
+			int n = readVarInt();
+			List<WordToResults> ret = new ArrayList<WordToResults>(n);
+			for (int i = 0; i < n; i++)
+				ret.add(readWord());
+			return ret;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+}
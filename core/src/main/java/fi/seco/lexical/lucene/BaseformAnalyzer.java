@@ -0,0 +1,50 @@
+package fi.seco.lexical.lucene;
+
+import java.util.Locale;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService;
+
+/**
+ * Analyzer that tokenizes like the HFST service and indexes baseforms, see
+ * {@link BaseformFilter}. Lucene reuses the token stream of each thread, so
+ * each thread also gets its own token cache and lookups need no locking.
+ */
+public class BaseformAnalyzer extends Analyzer {
+
+	private final HFSTLexicalAnalysisService service;
+	private final Locale lang;
+	private final boolean all;
+	private final boolean segments;
+	private final boolean guessUnknown;
+	private final int maxErrorCorrectDistance;
+	private final int cacheSize;
+
+	public BaseformAnalyzer(HFSTLexicalAnalysisService service, Locale lang) {
+		this(service, lang, false, false, true, 0, 100000);
+	}
+
+	/**
+	 * @param all index the baseforms of all readings instead of only the best
+	 * @param segments also index the baseforms of compound parts
+	 * @param cacheSize maximum number of distinct terms cached per thread
+	 */
+	public BaseformAnalyzer(HFSTLexicalAnalysisService service, Locale lang, boolean all, boolean segments, boolean guessUnknown, int maxErrorCorrectDistance, int cacheSize) {
+		this.service = service;
+		this.lang = lang;
+		this.all = all;
+		this.segments = segments;
+		this.guessUnknown = guessUnknown;
+		this.maxErrorCorrectDistance = maxErrorCorrectDistance;
+		this.cacheSize = cacheSize;
+	}
+
+	@Override
+	protected TokenStreamComponents createComponents(String fieldName) {
+		Tokenizer source = new LexicalAnalysisTokenizer();
+		return new TokenStreamComponents(source, new BaseformFilter(source, service, lang, all, segments, guessUnknown, maxErrorCorrectDistance, cacheSize));
+	}
+
+}
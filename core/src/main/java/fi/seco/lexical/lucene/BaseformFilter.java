@@ -0,0 +1,148 @@
+package fi.seco.lexical.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.lucene.analysis.CharArrayMap;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.KeywordAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService;
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.Result;
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.Result.WordPart;
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.WordToResults;
+
+/**
+ * Replaces each term with its baseform. Optionally the baseforms of all
+ * readings and the baseforms of compound parts are stacked at the same
+ * position. Keyword terms are left as is.
+ *
+ * The baseforms of each distinct term are kept in a cache, looked up straight
+ * from the term buffer, so a repeated term costs neither an analysis nor a
+ * String. The cache is cleared once it reaches its maximum size.
+ */
+public final class BaseformFilter extends TokenFilter {
+
+	private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+	private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+	private final KeywordAttribute keywordAtt = addAttribute(KeywordAttribute.class);
+
+	private final HFSTLexicalAnalysisService service;
+	private final Locale lang;
+	private final boolean all;
+	private final boolean segments;
+	private final boolean guessUnknown;
+	private final int maxErrorCorrectDistance;
+	private final int cacheSize;
+	private final CharArrayMap<char[][]> cache;
+
+	private char[][] baseforms;
+	private int nextBaseform;
+	private State state;
+
+	/**
+	 * @param all stack the baseforms of all readings instead of only the best
+	 * @param segments stack the baseforms of compound parts
+	 * @param cacheSize maximum number of distinct terms to cache
+	 */
+	public BaseformFilter(TokenStream input, HFSTLexicalAnalysisService service, Locale lang, boolean all, boolean segments, boolean guessUnknown, int maxErrorCorrectDistance, int cacheSize) {
+		super(input);
+		this.service = service;
+		this.lang = lang;
+		this.all = all;
+		this.segments = segments;
+		this.guessUnknown = guessUnknown;
+		this.maxErrorCorrectDistance = maxErrorCorrectDistance;
+		this.cacheSize = cacheSize;
+		this.cache = new CharArrayMap<char[][]>(Math.min(cacheSize, 1024), false);
+	}
+
+	@Override
+	public boolean incrementToken() throws IOException {
+		if (baseforms != null && nextBaseform < baseforms.length) {
+			restoreState(state);
+			char[] baseform = baseforms[nextBaseform++];
+			termAtt.copyBuffer(baseform, 0, baseform.length);
+			posIncAtt.setPositionIncrement(0);
+			return true;
+		}
+		baseforms = null;
+		if (!input.incrementToken()) return false;
+		if (keywordAtt.isKeyword()) return true;
+		char[][] b = cache.get(termAtt.buffer(), 0, termAtt.length());
+		if (b == null) {
+			String word = termAtt.toString();
+			b = getBaseforms(word);
+			if (cache.size() >= cacheSize) cache.clear();
+			cache.put(word, b);
+		}
+		termAtt.copyBuffer(b[0], 0, b[0].length);
+		if (b.length > 1) {
+			baseforms = b;
+			nextBaseform = 1;
+			state = captureState();
+		}
+		return true;
+	}
+
+	private static String getLemma(Result r) {
+		StringBuilder sb = new StringBuilder();
+		for (WordPart wp : r.getParts())
+			if (wp.getLemma() != null) sb.append(wp.getLemma());
+		return sb.toString();
+	}
+
+	private static Result getBest(List<Result> analysis) {
+		for (Result r : analysis)
+			if (r.getGlobalTags().containsKey("BEST_MATCH")) return r;
+		return analysis.get(0);
+	}
+
+	/**
+	 * @return the distinct baseforms of the word, the best one first
+	 */
+	private char[][] getBaseforms(String word) {
+		List<WordToResults> crc = service.analyze(word, lang, Collections.<String>emptyList(), false, guessUnknown, false, maxErrorCorrectDistance);
+		Set<String> ret = new LinkedHashSet<String>();
+		if (crc.size() == 1) {
+			List<Result> analysis = crc.get(0).getAnalysis();
+			List<Result> readings = new ArrayList<Result>();
+			readings.add(getBest(analysis));
+			if (all) readings.addAll(analysis);
+			for (Result r : readings)
+				ret.add(getLemma(r));
+			if (segments) for (Result r : readings)
+				if (r.getParts().size() > 1) for (WordPart wp : r.getParts())
+					if (wp.getLemma() != null) ret.add(wp.getLemma());
+		} else if (!crc.isEmpty()) {
+			// the service split the word further, so only join the best baseforms of the pieces
+			StringBuilder sb = new StringBuilder();
+			for (WordToResults wtr : crc)
+				sb.append(getLemma(getBest(wtr.getAnalysis())));
+			ret.add(sb.toString());
+		}
+		ret.remove("");
+		if (ret.isEmpty()) ret.add(word);
+		char[][] b = new char[ret.size()][];
+		int i = 0;
+		for (String s : ret)
+			b[i++] = s.toCharArray();
+		return b;
+	}
+
+	@Override
+	public void reset() throws IOException {
+		super.reset();
+		baseforms = null;
+		state = null;
+	}
+
+}
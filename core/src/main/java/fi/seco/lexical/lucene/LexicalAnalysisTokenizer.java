@@ -0,0 +1,61 @@
+package fi.seco.lexical.lucene;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+
+import fi.seco.lexical.LexicalAnalysisUtil;
+import fi.seco.lexical.TextSpans;
+
+/**
+ * Tokenizes like {@link LexicalAnalysisUtil#tokenize(String)}, i.e. like the
+ * HFST service does before analysis. The terms are copied straight from the
+ * input into the term attribute.
+ */
+public final class LexicalAnalysisTokenizer extends Tokenizer {
+
+	private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+	private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+
+	private final StringBuilder text = new StringBuilder();
+	private final char[] buffer = new char[4096];
+	private TextSpans spans;
+	private int next;
+
+	@Override
+	public boolean incrementToken() throws IOException {
+		clearAttributes();
+		if (spans == null) {
+			for (int read; (read = input.read(buffer)) != -1;)
+				text.append(buffer, 0, read);
+			spans = LexicalAnalysisUtil.tokenSpans(text);
+		}
+		while (next < spans.size()) {
+			int start = spans.start(next);
+			int end = spans.end(next++);
+			if (start == end) continue;
+			termAtt.setEmpty().append(text, start, end);
+			offsetAtt.setOffset(correctOffset(start), correctOffset(end));
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void end() throws IOException {
+		super.end();
+		int offset = correctOffset(text.length());
+		offsetAtt.setOffset(offset, offset);
+	}
+
+	@Override
+	public void reset() throws IOException {
+		super.reset();
+		text.setLength(0);
+		spans = null;
+		next = 0;
+	}
+
+}
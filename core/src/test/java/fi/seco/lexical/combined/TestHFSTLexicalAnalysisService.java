@@ -1,6 +1,7 @@
 package fi.seco.lexical.combined;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
@@ -10,7 +11,13 @@ import java.util.stream.Collectors;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
+import fi.seco.hfst.Transducer;
+import fi.seco.hfst.TransducerAlphabet;
+import fi.seco.hfst.TransducerHeader;
 import fi.seco.lexical.hfst.HFSTLexicalAnalysisService;
+import fi.seco.lexical.hfst.ILookupTransducer;
+import fi.seco.lexical.hfst.UnweightedLookupTransducer;
+import fi.seco.lexical.hfst.WeightedLookupTransducer;
 import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.Result.WordPart;
 import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.WordToResults;
 
@@ -69,4 +76,27 @@ public class TestHFSTLexicalAnalysisService {
 		assertTrue("Inflection support is not working! "+las.getSupportedInflectionLocales(),las.getSupportedInflectionLocales().contains(new Locale("fi")));
 		assertEquals("Albert ostaminen fagotit ja töräyttäminen puhkuminen melodiat",las.inflect("Albert osti fagotin ja töräytti puhkuvan melodian", Arrays.asList(new String[] {"V N Nom Sg", "N Nom Pl", "A Pos Nom Pl"}),false , false, false, 0, new Locale("fi")));
 	}
+
+	private static List<String> toStrings(List<Transducer.Result> results) {
+		return results.stream().map(r -> r.getSymbols() + ":" + r.getWeight()).collect(Collectors.toList());
+	}
+
+	@Test
+	public void testLookupMatchesFullAnalysis() throws IOException {
+		DataInputStream charstream = new DataInputStream(HFSTLexicalAnalysisService.class.getResourceAsStream("fi-analysis.hfst.ol"));
+		TransducerHeader h = new TransducerHeader(charstream);
+		TransducerAlphabet a = new TransducerAlphabet(charstream, h.getSymbolCount());
+		ILookupTransducer t = h.isWeighted() ? new WeightedLookupTransducer(charstream, h, a) : new UnweightedLookupTransducer(charstream, h, a);
+		charstream.close();
+		for (String w : new String[] { "", "a", "on", "kuin", "kuu", "olen", "mies", "juoksin", "läpi", "yön", "Helsingissä", "helsingissä", "HELSINGISSÄ", "Mannerheim-risti", "Suomalaismies", "Venäjän", "sanomalehteä", "kirjastoautoissammekinko", "töräytti", "puhkuvan", "melodian", "epäjärjestelmällistyttämättömyydellänsäkäänköhän", "1,5", "talo-", "-talo", "xyzzy", "qwfp", "Mannerheim." }) {
+			List<Transducer.Result> full = new ArrayList<Transducer.Result>(t.analyze(w));
+			assertEquals(w, !full.isEmpty(), t.accepts(w));
+			// stable, so analyses of equal weight stay in traversal order
+			full.sort((o1, o2) -> Float.compare(o1.getWeight(), o2.getWeight()));
+			for (int n : new int[] { 1, 2, 3, 5, full.size(), full.size() + 1 })
+				if (n > 0) assertEquals(w + " " + n, toStrings(full.subList(0, Math.min(n, full.size()))), toStrings(t.analyze(w, n)));
+			List<Transducer.Result> cheapest = full.stream().filter(r -> r.getWeight() == full.get(0).getWeight()).collect(Collectors.toList());
+			assertEquals(w, toStrings(cheapest), toStrings(t.analyzeCheapest(w)));
+		}
+	}
 }
@@ -0,0 +1,69 @@
+package fi.seco.lexical.combined;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import fi.seco.lexical.LexicalAnalysisUtil;
+
+public class TestLexicalAnalysisUtil {
+
+	// the regexes tokenize and split used to be built on
+	private final static Pattern oldTokenSplit = Pattern.compile("\\p{P}*(^|\\s+|$)\\p{P}*");
+	private final static Pattern oldSentenceSplit = Pattern.compile("(?<=[.?!;])\\s+(?=\\p{Lu})");
+
+	private static List<String> randomStrings() {
+		char[] alphabet = "abÄX.,-!?;\"  \t\n".toCharArray();
+		Random r = new Random(0);
+		List<String> ret = new ArrayList<String>();
+		for (int i = 0; i < 20000; i++) {
+			char[] c = new char[1 + r.nextInt(15)];
+			for (int j = 0; j < c.length; j++)
+				c[j] = alphabet[r.nextInt(alphabet.length)];
+			ret.add(new String(c));
+		}
+		return ret;
+	}
+
+	@Test
+	public void testTokenizeMatchesOldBoundaries() {
+		for (String s : randomStrings()) {
+			if (Character.isWhitespace(s.charAt(0))) continue;
+			List<String> old = Arrays.stream(oldTokenSplit.split(s)).filter(t -> !t.isEmpty()).collect(Collectors.toList());
+			assertEquals("[" + s + "]", old, new ArrayList<String>(LexicalAnalysisUtil.tokenize(s)));
+		}
+	}
+
+	@Test
+	public void testSplitMatchesOldBoundaries() {
+		for (String s : randomStrings())
+			assertEquals("[" + s + "]", Arrays.asList(oldSentenceSplit.split(s)), new ArrayList<String>(LexicalAnalysisUtil.split(s)));
+	}
+
+	@Test
+	public void testTokenizeChanges() {
+		// no empty tokens from leading punctuation or punctuation between spaces
+		assertEquals(Arrays.asList("Hei", "sanoi"), new ArrayList<String>(LexicalAnalysisUtil.tokenize("\"Hei!\" sanoi")));
+		assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(LexicalAnalysisUtil.tokenize(". a . b")));
+		// leading whitespace is not a token of its own
+		assertEquals(Arrays.asList("ab", "c"), new ArrayList<String>(LexicalAnalysisUtil.tokenize("  ab c")));
+		assertEquals(Collections.emptyList(), new ArrayList<String>(LexicalAnalysisUtil.tokenize("")));
+		assertEquals("a b", LexicalAnalysisUtil.normalize(". a . b"));
+		// punctuation inside a token is kept
+		assertEquals(Arrays.asList("esim.ks", "1,5"), new ArrayList<String>(LexicalAnalysisUtil.tokenize("esim.ks. 1,5.")));
+	}
+
+	@Test
+	public void testSplitChanges() {
+		assertEquals(Collections.emptyList(), new ArrayList<String>(LexicalAnalysisUtil.split("")));
+		assertEquals(Arrays.asList(" A.", "B "), new ArrayList<String>(LexicalAnalysisUtil.split(" A. B ")));
+	}
+
+}
@@ -0,0 +1,142 @@
+package fi.seco.lexical.combined;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.seco.lexical.PersistentCache;
+
+public class TestPersistentCache {
+
+	// file layout: a 16 byte header, then records of key length, value length and checksum, followed by the key and the value
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_HEADER_SIZE = 12;
+
+	private File f;
+
+	@Before
+	public void createFile() throws IOException {
+		f = File.createTempFile("cache", ".bin");
+	}
+
+	@After
+	public void deleteFile() {
+		f.delete();
+	}
+
+	private static byte[] b(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		try (PersistentCache c = new PersistentCache(f)) {
+			assertNull(c.get(b("kissa")));
+			c.put(b("kissa"), b("kissa N Nom Sg"));
+			c.put(b("koira"), b("koira N Nom Sg"));
+			c.put(b("kissa"), b("kissa N"));
+			c.put(b(""), b(""));
+			assertArrayEquals(b("kissa N"), c.get(b("kissa")));
+			assertEquals(3, c.size());
+		}
+		try (PersistentCache c = new PersistentCache(f)) {
+			assertEquals(3, c.size());
+			assertArrayEquals(b("kissa N"), c.get(b("kissa")));
+			assertArrayEquals(b("koira N Nom Sg"), c.get(b("koira")));
+			assertArrayEquals(b(""), c.get(b("")));
+			assertNull(c.get(b("hevonen")));
+			c.put(b("hevonen"), b("hevonen N Nom Sg"));
+		}
+		try (PersistentCache c = new PersistentCache(f)) {
+			assertEquals(4, c.size());
+			assertArrayEquals(b("hevonen N Nom Sg"), c.get(b("hevonen")));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotACacheFile() throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			raf.write(b("not a cache file"));
+		}
+		new PersistentCache(f).close();
+	}
+
+	@Test
+	public void testCorruptRecords() throws IOException {
+		try (PersistentCache c = new PersistentCache(f)) {
+			c.put(b("a"), b("1"));
+			c.put(b("b"), b("2"));
+			c.put(b("c"), b("3"));
+		}
+		int record = RECORD_HEADER_SIZE + 2;
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			// a checksum mismatch skips only that record
+			raf.seek(HEADER_SIZE + record - 1);
+			raf.write('x');
+		}
+		try (PersistentCache c = new PersistentCache(f)) {
+			assertNull(c.get(b("a")));
+			assertArrayEquals(b("2"), c.get(b("b")));
+			assertArrayEquals(b("3"), c.get(b("c")));
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			// a length past the committed end drops the rest of the cache
+			raf.seek(HEADER_SIZE + record);
+			raf.writeInt(1 << 20);
+		}
+		try (PersistentCache c = new PersistentCache(f)) {
+			assertNull(c.get(b("b")));
+			assertNull(c.get(b("c")));
+			assertEquals(0, c.size());
+			c.put(b("d"), b("4"));
+			assertArrayEquals(b("4"), c.get(b("d")));
+		}
+	}
+
+	@Test
+	public void testFull() throws IOException {
+		int record = RECORD_HEADER_SIZE + 2;
+		try (PersistentCache c = new PersistentCache(f, HEADER_SIZE + 2 * record + 1)) {
+			c.put(b("a"), b("1"));
+			c.put(b("b"), b("2"));
+			c.put(b("c"), b("3"));
+			c.put(b("d"), b(""));
+			assertArrayEquals(b("1"), c.get(b("a")));
+			assertArrayEquals(b("2"), c.get(b("b")));
+			assertNull(c.get(b("c")));
+			assertNull(c.get(b("d")));
+			assertEquals(2, c.size());
+		}
+		assertEquals(HEADER_SIZE + 2 * record + 1, f.length());
+		try (PersistentCache c = new PersistentCache(f, HEADER_SIZE + 2 * record + 1)) {
+			assertEquals(2, c.size());
+			assertArrayEquals(b("2"), c.get(b("b")));
+		}
+	}
+
+	@Test
+	public void testHashCollision() throws IOException {
+		try (PersistentCache c = new PersistentCache(f) {
+			@Override
+			protected long hash(byte[] key) {
+				return key.length;
+			}
+		}) {
+			c.put(b("ab"), b("1"));
+			assertNull(c.get(b("cd")));
+			c.put(b("cd"), b("2"));
+			assertArrayEquals(b("2"), c.get(b("cd")));
+			assertNull(c.get(b("ab")));
+			assertNull(c.get(b("a")));
+			assertNull(c.get(b("abc")));
+			assertEquals(1, c.size());
+		}
+	}
+
+}
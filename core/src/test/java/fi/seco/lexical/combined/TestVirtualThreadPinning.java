@@ -0,0 +1,82 @@
+package fi.seco.lexical.combined;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+import org.junit.Test;
+
+import fi.seco.lexical.SnowballLexicalAnalysisService;
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService;
+
+/**
+ * Runs concurrent analyses on virtual threads and checks that none of them
+ * parks while pinned to its carrier. Needs JDK 21 to 23 with
+ * -Djdk.tracePinnedThreads, as set by the jdk21 profile, and is skipped
+ * otherwise.
+ */
+public class TestVirtualThreadPinning {
+
+	private static final Object monitor = new Object();
+
+	private static void runAll(ExecutorService executor, List<Callable<Object>> tasks) throws Exception {
+		for (Future<Object> f : executor.invokeAll(tasks))
+			f.get();
+	}
+
+	@Test
+	public void testNoPinning() throws Exception {
+		assumeNotNull(System.getProperty("jdk.tracePinnedThreads"));
+		Method m;
+		try {
+			m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			m = null;
+		}
+		assumeNotNull(m);
+		CombinedLexicalAnalysisService las = new CombinedLexicalAnalysisService();
+		HFSTLexicalAnalysisService hfst = new HFSTLexicalAnalysisService();
+		SnowballLexicalAnalysisService snowball = new SnowballLexicalAnalysisService();
+		Locale fi = new Locale("fi");
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int i = 0; i < 64; i++) {
+			tasks.add(() -> las.analyze("Suomalaismies Venäjän rajalla", fi, Collections.<String>emptyList(), false, true, true, 2));
+			tasks.add(() -> las.baseform("Helsingin yliopistossa", fi, false, true, 0));
+			tasks.add(() -> hfst.baseform("kissoille", fi, false, true, 0));
+			tasks.add(() -> snowball.baseform("kissoille koirille", fi, false, true, 0));
+		}
+		PrintStream out = System.out;
+		ByteArrayOutputStream trace = new ByteArrayOutputStream();
+		ExecutorService executor = (ExecutorService) m.invoke(null);
+		try {
+			System.setOut(new PrintStream(trace, true, "UTF-8"));
+			runAll(executor, tasks);
+			System.out.flush();
+			// frames holding monitors are marked in the trace
+			assertFalse(trace.toString("UTF-8"), trace.toString("UTF-8").contains("<== monitors"));
+			// make sure pinning would have been noticed
+			runAll(executor, Collections.<Callable<Object>>singletonList(() -> {
+				synchronized (monitor) {
+					Thread.sleep(10);
+				}
+				return null;
+			}));
+			System.out.flush();
+			assertTrue(trace.toString("UTF-8").contains("<== monitors"));
+		} finally {
+			System.setOut(out);
+			executor.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+package fi.seco.lexical.combined;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.Result;
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.Result.WordPart;
+import fi.seco.lexical.hfst.HFSTLexicalAnalysisService.WordToResults;
+import fi.seco.lexical.hfst.WordToResultsCodec;
+
+public class TestWordToResultsCodec {
+
+	private static WordPart part(String lemma, String... tags) {
+		WordPart wp = lemma == null ? new WordPart() : new WordPart(lemma);
+		for (int i = 0; i < tags.length; i += 2)
+			wp.addTag(tags[i], tags[i + 1]);
+		return wp;
+	}
+
+	private static Result result(float weight, WordPart... parts) {
+		Result r = new Result(weight);
+		for (WordPart wp : parts)
+			r.addPart(wp);
+		return r;
+	}
+
+	private static WordToResults word(String word, Result... results) {
+		return new WordToResults(word, new ArrayList<Result>(Arrays.asList(results)));
+	}
+
+	// Result.equals compares weights with == and WordPart.equals fails on null lemmas
+	private static void assertSame(List<WordToResults> expected, List<WordToResults> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			WordToResults e = expected.get(i);
+			WordToResults a = actual.get(i);
+			assertEquals(e.getWord(), a.getWord());
+			assertEquals(e.getWord(), e.getAnalysis().size(), a.getAnalysis().size());
+			for (int j = 0; j < e.getAnalysis().size(); j++) {
+				Result er = e.getAnalysis().get(j);
+				Result ar = a.getAnalysis().get(j);
+				assertEquals(er.toString(), Float.floatToIntBits(er.getWeight()), Float.floatToIntBits(ar.getWeight()));
+				assertEquals(er.getGlobalTags(), ar.getGlobalTags());
+				assertEquals(er.getParts().size(), ar.getParts().size());
+				for (int k = 0; k < er.getParts().size(); k++) {
+					assertEquals(er.toString(), er.getParts().get(k).getLemma(), ar.getParts().get(k).getLemma());
+					assertEquals(er.getParts().get(k).getTags(), ar.getParts().get(k).getTags());
+				}
+			}
+		}
+	}
+
+	private static void assertRoundTrip(List<WordToResults> document) throws IOException {
+		assertSame(document, WordToResultsCodec.decode(WordToResultsCodec.encode(document)));
+	}
+
+	@Test
+	public void testLowercasedFirstLetter() throws IOException {
+		assertRoundTrip(Arrays.asList(
+				word("Helsingissä", result(0, part("helsinki", "CASE", "INE"))),
+				word("Ä", result(0, part("ä"))),
+				word("Xyz", result(0, part("abc"), part("yz")))));
+	}
+
+	@Test
+	public void testSurrogatePairs() throws IOException {
+		String a = "\uD835\uDC00";
+		String b = "\uD835\uDC01";
+		assertRoundTrip(Arrays.asList(
+				word("x" + a + "y", result(0, part("x" + b))),
+				word(a + "y", result(0, part(b))),
+				word("x" + a, result(0, part("x" + a + "z"))),
+				word(a + a, result(0, part(a), part(a)))));
+	}
+
+	@Test
+	public void testCompoundParts() throws IOException {
+		assertRoundTrip(Arrays.asList(
+				word("Sanomalehteä", result(0, part("sanoma", "POS", "NOUN"), part("lehti", "POS", "NOUN", "CASE", "PAR"))),
+				word("kirjastoauto", result(0, part("kirjasto"), part("auto")), result(1, part("kirja"), part("sto"), part("auto"))),
+				word("ab", result(0, part("ab"), part("ab"), part("")))));
+	}
+
+	@Test
+	public void testWeights() throws IOException {
+		float[] weights = { 0, 1, -1, 7, -12345, Integer.MAX_VALUE, Integer.MIN_VALUE, 1e10f, 0.5f, -2.75f, Float.NaN, -0f, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.MIN_VALUE, Float.MAX_VALUE };
+		List<WordToResults> document = new ArrayList<WordToResults>();
+		for (float w : weights)
+			document.add(word("sana", result(w, part("sana"))));
+		assertRoundTrip(document);
+	}
+
+	@Test
+	public void testNullLemmas() throws IOException {
+		Result r = result(0, part(null, "POS", "PUNCT"), part("sana"), part(null));
+		r.addGlobalTag("BEST_MATCH", "TRUE");
+		assertRoundTrip(Arrays.asList(word("sana", r), word("", result(0, part(null))), word("tyhjä")));
+	}
+
+	@Test
+	public void testStream() throws IOException {
+		List<List<WordToResults>> documents = new ArrayList<List<WordToResults>>();
+		documents.add(Arrays.asList(word("Kissa", result(0, part("kissa", "POS", "NOUN"))), word("istuu", result(0, part("istua", "POS", "VERB")))));
+		documents.add(new ArrayList<WordToResults>());
+		// strings of the earlier documents come from the shared dictionary
+		documents.add(Arrays.asList(word("Kissa", result(0, part("kissa", "POS", "NOUN")), result(1.5f, part("Kissa", "POS", "PROPN")))));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (WordToResultsCodec.Writer w = new WordToResultsCodec.Writer(bytes)) {
+			for (List<WordToResults> document : documents)
+				w.write(document);
+		}
+		try (WordToResultsCodec.Reader r = new WordToResultsCodec.Reader(new ByteArrayInputStream(bytes.toByteArray()))) {
+			for (List<WordToResults> document : documents)
+				assertSame(document, r.read());
+			assertNull(r.read());
+			assertNull(r.read());
+		}
+	}
+
+}